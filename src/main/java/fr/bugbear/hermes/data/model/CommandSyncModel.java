@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import lombok.With;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Hash of the slash commands last pushed to Discord, by scope ({@code global} or a guild ID)
+ */
+@Entity @Table(name = "command_sync")
+@AllArgsConstructor @NoArgsConstructor @With
+public class CommandSyncModel {
+    @Id
+    public String scope;
+    public String hash;
+    public ZonedDateTime updatedAt;
+}
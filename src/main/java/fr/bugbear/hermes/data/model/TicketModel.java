@@ -22,12 +22,19 @@ import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
 import lombok.With;
+import org.hibernate.annotations.DynamicUpdate;
 
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Set;
 
-@Entity @Table(name = "ticket")
+/**
+ * Ticket of a forum.
+ * <p>
+ * Updates only write the modified columns: the webhook message URL is set by a Discord callback while handlers may
+ * hold an instance loaded before it, which would write it back to null.
+ */
+@Entity @Table(name = "ticket") @DynamicUpdate
 @AllArgsConstructor @NoArgsConstructor @With
 public class TicketModel {
     @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import lombok.With;
+
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+/**
+ * Transcript of a closed ticket or trace ticket. Its messages are stored in the {@code transcript_message} table,
+ * written with JDBC batches by {@link fr.bugbear.hermes.data.repository.TranscriptRepository}.
+ */
+@Entity @Table(name = "transcript")
+@AllArgsConstructor @NoArgsConstructor @With
+public class TranscriptModel {
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Long id;
+
+    public Long ticketId;
+    public UUID traceTicketId;
+
+    public Long guildId;
+    public Long channelId;
+    public String name;
+
+    public ZonedDateTime closedAt;
+    public Integer messageCount;
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.repository;
+
+import fr.bugbear.hermes.data.model.CommandSyncModel;
+import io.quarkus.hibernate.orm.panache.PanacheRepositoryBase;
+import jakarta.enterprise.context.ApplicationScoped;
+
+@ApplicationScoped
+@QueryTimed
+public class CommandSyncRepository implements PanacheRepositoryBase<CommandSyncModel, String> {
+}
@@ -14,6 +14,7 @@ import java.util.Optional;
 import java.util.UUID;
 
 @ApplicationScoped
+@QueryTimed
 public class ForumRepository implements PanacheRepositoryBase<ForumModel, UUID> {
 
     public Optional<ForumModel> findByForumChannel(ForumChannel forumChannel) {
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.repository;
+
+import jakarta.interceptor.InterceptorBinding;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Times the queries of a repository, in a timer per method declared by the repository.
+ *
+ * @see QueryTimers
+ */
+@InterceptorBinding
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface QueryTimed {
+}
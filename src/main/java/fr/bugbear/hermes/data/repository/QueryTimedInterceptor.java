@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.repository;
+
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the time of the methods of the {@link QueryTimed} repositories in their timer.
+ */
+@QueryTimed
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION)
+public class QueryTimedInterceptor {
+
+    @Inject QueryTimers queryTimers;
+
+    @AroundInvoke
+    Object time(InvocationContext context) throws Exception {
+        val timer = queryTimers.timer(context.getMethod());
+        if (timer == null)
+            return context.proceed();
+        val start = System.nanoTime();
+        try {
+            return context.proceed();
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
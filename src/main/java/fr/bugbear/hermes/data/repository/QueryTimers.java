@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.repository;
+
+import fr.bugbear.hermes.Logged;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.hibernate.orm.panache.PanacheRepositoryBase;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Any;
+import jakarta.enterprise.inject.spi.BeanManager;
+import jakarta.inject.Inject;
+import lombok.val;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Timers of the queries of the {@link QueryTimed} repositories, tagged with the repository and the method.
+ * <p>
+ * The timers are registered before the first query, one per method declared by a repository, so that a query only
+ * looks its timer up. The methods inherited from Panache are not timed, the Hibernate statistics cover them. A method
+ * returning a stream is timed until the stream is returned, not while it is read.
+ */
+@ApplicationScoped
+public class QueryTimers implements Logged {
+
+    @Inject MeterRegistry registry;
+    @Inject BeanManager beanManager;
+
+    private Map<Method, Timer> timers = Map.of();
+
+    @PostConstruct
+    void register() {
+        // Panache generates its methods in the repositories when building
+        val panacheMethods = Arrays.stream(PanacheRepositoryBase.class.getMethods())
+                                   .map(Method::getName)
+                                   .collect(Collectors.toSet());
+        val registered = new HashMap<Method, Timer>();
+        for (val bean : beanManager.getBeans(Object.class, Any.Literal.INSTANCE)) {
+            val repository = bean.getBeanClass();
+            if (!repository.isAnnotationPresent(QueryTimed.class))
+                continue;
+            for (val method : repository.getDeclaredMethods()) {
+                if (method.isSynthetic() || Modifier.isStatic(method.getModifiers())
+                    || Modifier.isPrivate(method.getModifiers()) || panacheMethods.contains(method.getName()))
+                    continue;
+                registered.put(method, Timer.builder("hermes.repository.query")
+                                            .description("Time spent in a query of a repository")
+                                            .tag("repository", repository.getSimpleName())
+                                            .tag("method", method.getName())
+                                            .register(registry));
+            }
+        }
+        timers = Map.copyOf(registered);
+        logger().info("Timing {} repository methods", timers.size());
+    }
+
+    /**
+     * @param method
+     *         the method called
+     *
+     * @return the timer of the method, null if it is not declared by a timed repository
+     */
+    public Timer timer(Method method) {
+        return timers.get(method);
+    }
+}
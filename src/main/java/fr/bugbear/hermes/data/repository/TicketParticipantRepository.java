@@ -9,8 +9,23 @@ import fr.bugbear.hermes.data.model.TicketParticipantModel;
 import io.quarkus.hibernate.orm.panache.PanacheRepositoryBase;
 import jakarta.enterprise.context.ApplicationScoped;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
+@QueryTimed
 public class TicketParticipantRepository implements PanacheRepositoryBase<TicketParticipantModel, UUID> {
+
+    public Map<Long, Set<Long>> findUserIdsByTickets(Collection<Long> ticketIds) {
+        return getEntityManager()
+                .createQuery("select p.ticket.id, p.userId from TicketParticipantModel p where p.ticket.id in :ids",
+                             Object[].class)
+                .setParameter("ids", ticketIds)
+                .getResultStream()
+                .collect(Collectors.groupingBy(row -> (Long) row[0],
+                                               Collectors.mapping(row -> (Long) row[1], Collectors.toSet())));
+    }
 }
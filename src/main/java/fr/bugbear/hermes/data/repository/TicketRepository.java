@@ -8,19 +8,171 @@ package fr.bugbear.hermes.data.repository;
 import fr.bugbear.hermes.data.model.TicketModel;
 import io.quarkus.hibernate.orm.panache.PanacheRepositoryBase;
 import jakarta.enterprise.context.ApplicationScoped;
+import lombok.val;
 import net.dv8tion.jda.api.entities.channel.concrete.ThreadChannel;
 
+import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @ApplicationScoped
+@QueryTimed
 public class TicketRepository implements PanacheRepositoryBase<TicketModel, Long> {
 
     public Optional<TicketModel> findByThread(ThreadChannel thread) {
         return find("threadId", thread.getIdLong()).firstResultOptional();
     }
 
-    public List<TicketModel> findOpenTickets() {
-        return list("status", TicketModel.Status.OPEN);
+    /**
+     * Stream the (thread ID, ticket ID) pairs of every ticket whose thread still exists
+     */
+    public Stream<Object[]> streamLiveThreadIds() {
+        return getEntityManager()
+                .createQuery("select t.threadId, t.id from TicketModel t where t.status <> :deleted"
+                             + " and t.threadId is not null", Object[].class)
+                .setParameter("deleted", TicketModel.Status.DELETED)
+                .getResultStream();
+    }
+
+    /**
+     * Get the owner of every open or in progress ticket, once per ticket
+     */
+    public List<Long> findActiveTicketOwners() {
+        return getEntityManager()
+                .createQuery("select t.createdBy from TicketModel t where t.status in :statuses"
+                             + " and t.createdBy is not null", Long.class)
+                .setParameter("statuses", List.of(TicketModel.Status.OPEN, TicketModel.Status.IN_PROGRESS))
+                .getResultList();
+    }
+
+    /**
+     * Open or in progress ticket, with the forum channel of its thread
+     */
+    public record ActiveTicket(long id, long threadId, Long createdBy, long forumChannelId) {
+    }
+
+    public List<ActiveTicket> findActiveTickets() {
+        return getEntityManager()
+                .createQuery("select t.id, t.threadId, t.createdBy, t.forum.channelId from TicketModel t"
+                             + " where t.status in :statuses and t.threadId is not null"
+                             + " and t.forum.channelId is not null", Object[].class)
+                .setParameter("statuses", List.of(TicketModel.Status.OPEN, TicketModel.Status.IN_PROGRESS))
+                .getResultStream()
+                .map(row -> new ActiveTicket((Long) row[0], (Long) row[1], (Long) row[2], (Long) row[3]))
+                .toList();
+    }
+
+    /**
+     * Number of tickets of a forum in a status
+     */
+    public record TicketCount(String forumName, TicketModel.Status status, long count) {
+    }
+
+    /**
+     * Count the open and in progress tickets, by forum and status
+     *
+     * @return the counts, only for the forums and statuses having tickets
+     */
+    public List<TicketCount> countActiveTickets() {
+        return getEntityManager()
+                .createQuery("select t.forum.name, t.status, count(t) from TicketModel t"
+                             + " where t.status in :statuses group by t.forum.name, t.status", Object[].class)
+                .setParameter("statuses", List.of(TicketModel.Status.OPEN, TicketModel.Status.IN_PROGRESS))
+                .getResultStream()
+                .map(row -> new TicketCount((String) row[0], (TicketModel.Status) row[1], (Long) row[2]))
+                .toList();
+    }
+
+    /**
+     * Close tickets in bulk
+     *
+     * @param ticketIds
+     *         the tickets to close
+     * @param status
+     *         the closed status, {@code CLOSED} or {@code DELETED}
+     *
+     * @return the number of tickets updated
+     */
+    public int closeAll(Collection<Long> ticketIds, TicketModel.Status status) {
+        if (ticketIds.isEmpty())
+            return 0;
+        val now = ZonedDateTime.now();
+        return update("status = ?1, closedAt = ?2, updatedAt = ?2 where id in ?3", status, now, ticketIds);
+    }
+
+    /**
+     * Open ticket to remind, with its forum
+     */
+    public record ReminderTicket(long id, long guildId, long threadId, ZonedDateTime createdAt, UUID forumId,
+                                 String forumName, Long webhookChannelId) {
+    }
+
+    /**
+     * Count the open tickets created before a date, by forum
+     *
+     * @param createdBefore
+     *         the age threshold
+     *
+     * @return the number of tickets, by forum ID
+     */
+    public Map<UUID, Long> countOpenTicketsByForum(ZonedDateTime createdBefore) {
+        return getEntityManager()
+                .createQuery("select t.forum.id, count(t) from TicketModel t"
+                             + " where t.status = :status and t.createdAt < :createdBefore"
+                             + " and t.guildId is not null and t.threadId is not null group by t.forum.id",
+                             Object[].class)
+                .setParameter("status", TicketModel.Status.OPEN)
+                .setParameter("createdBefore", createdBefore)
+                .getResultStream()
+                .collect(Collectors.toMap(row -> (UUID) row[0], row -> (Long) row[1]));
+    }
+
+    /**
+     * Get a page of the open tickets created before a date, ordered by forum then oldest first.
+     * <p>
+     * Pages are read by keyset, starting after the last ticket of the previous page, so that reading a page doesn't
+     * scan the tickets of the previous ones.
+     *
+     * @param createdBefore
+     *         the age threshold
+     * @param after
+     *         the last ticket of the previous page, or null for the first page
+     * @param pageSize
+     *         the number of tickets per page
+     *
+     * @return the tickets of the page
+     */
+    public List<ReminderTicket> findOpenTicketsCreatedBefore(ZonedDateTime createdBefore,
+                                                             ReminderTicket after,
+                                                             int pageSize) {
+        val query = getEntityManager()
+                .createQuery("select t.id, t.guildId, t.threadId, t.createdAt, f.id, f.name, f.webhookChannelId"
+                             + " from TicketModel t join t.forum f"
+                             + " where t.status = :status and t.createdAt < :createdBefore"
+                             + " and t.guildId is not null and t.threadId is not null"
+                             + (after == null ? "" : " and (t.forum.id, t.createdAt, t.id) > (:forumId, :at, :id)")
+                             // the order of the ticket_active_forum_id_created_at_id_idx index
+                             + " order by t.forum.id, t.createdAt, t.id", Object[].class)
+                .setParameter("status", TicketModel.Status.OPEN)
+                .setParameter("createdBefore", createdBefore)
+                .setMaxResults(pageSize);
+        if (after != null)
+            query.setParameter("forumId", after.forumId())
+                 .setParameter("at", after.createdAt())
+                 .setParameter("id", after.id());
+        return query.getResultStream()
+                    .map(row -> new ReminderTicket((Long) row[0],
+                                                   (Long) row[1],
+                                                   (Long) row[2],
+                                                   (ZonedDateTime) row[3],
+                                                   (UUID) row[4],
+                                                   (String) row[5],
+                                                   (Long) row[6]))
+                    .toList();
     }
 }
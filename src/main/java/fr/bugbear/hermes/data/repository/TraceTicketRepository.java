@@ -14,6 +14,7 @@ import java.util.Optional;
 import java.util.UUID;
 
 @ApplicationScoped
+@QueryTimed
 public class TraceTicketRepository implements PanacheRepositoryBase<TraceTicketModel, UUID> {
 
     public Optional<TraceTicketModel> findByChannel(TextChannel channel) {
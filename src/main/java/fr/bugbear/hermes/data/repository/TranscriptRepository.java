@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.repository;
+
+import fr.bugbear.hermes.data.model.TranscriptModel;
+import io.quarkus.hibernate.orm.panache.PanacheRepositoryBase;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.val;
+import org.hibernate.Session;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@ApplicationScoped
+@QueryTimed
+public class TranscriptRepository implements PanacheRepositoryBase<TranscriptModel, Long> {
+
+    private static final String INSERT_MESSAGE = "insert into transcript_message"
+                                                 + " (transcript_id, message_id, author_id, author_name, created_at,"
+                                                 + " content) values (?, ?, ?, ?, ?, ?) on conflict do nothing";
+
+    /**
+     * Best matching message of each transcript of the guild, the headline being only computed for the returned rows
+     */
+    static final String SEARCH = """
+            with query as (select websearch_to_tsquery('simple', ?) as query),
+                 hits as (select m.transcript_id,
+                                 m.content,
+                                 ts_rank(m.search_vector, query.query) as rank,
+                                 row_number() over (partition by m.transcript_id
+                                                    order by ts_rank(m.search_vector, query.query) desc) as position
+                          from transcript_message m
+                                   join transcript t on t.id = m.transcript_id,
+                               query
+                          where t.guild_id = ?
+                            and m.search_vector @@ query.query)
+            select t.id, t.ticket_id, t.trace_ticket_id, t.name, t.closed_at, hits.rank,
+                   ts_headline('simple', coalesce(hits.content, ''), query.query,
+                               'StartSel=**, StopSel=**, MaxWords=25, MinWords=8, MaxFragments=1') as headline
+            from hits
+                     join transcript t on t.id = hits.transcript_id,
+                 query
+            where hits.position = 1
+            order by hits.rank desc
+            limit ?
+            """;
+
+    /**
+     * Message of a transcript, as written in the {@code transcript_message} table
+     */
+    public record MessageRow(long messageId, long authorId, String authorName, OffsetDateTime createdAt,
+                             String content) {
+    }
+
+    /**
+     * Transcript matching a search, with its best matching message
+     *
+     * @param headline
+     *         excerpt of the best matching message, matching words in bold
+     */
+    public record TranscriptHit(long transcriptId, Long ticketId, UUID traceTicketId, String name,
+                                OffsetDateTime closedAt, float rank, String headline) {
+    }
+
+    /**
+     * Insert messages of a transcript in one JDBC batch, messages already stored being ignored
+     *
+     * @param transcriptId
+     *         the transcript ID
+     * @param messages
+     *         the messages
+     */
+    public void insertMessages(long transcriptId, List<MessageRow> messages) {
+        if (messages.isEmpty())
+            return;
+        getEntityManager().unwrap(Session.class).doWork(connection -> {
+            try (val insert = connection.prepareStatement(INSERT_MESSAGE)) {
+                for (val message : messages) {
+                    insert.setLong(1, transcriptId);
+                    insert.setLong(2, message.messageId());
+                    insert.setLong(3, message.authorId());
+                    insert.setString(4, message.authorName());
+                    insert.setObject(5, message.createdAt());
+                    insert.setString(6, message.content());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Search the transcripts of a guild
+     *
+     * @param guildId
+     *         the guild ID
+     * @param query
+     *         the search, in web search syntax ({@code "exact phrase"}, {@code or}, {@code -excluded})
+     * @param limit
+     *         maximum number of transcripts returned
+     *
+     * @return the matching transcripts, best first
+     */
+    public List<TranscriptHit> search(long guildId, String query, int limit) {
+        return getEntityManager().unwrap(Session.class).doReturningWork(connection -> {
+            val hits = new ArrayList<TranscriptHit>();
+            try (val statement = connection.prepareStatement(SEARCH)) {
+                statement.setString(1, query);
+                statement.setLong(2, guildId);
+                statement.setInt(3, limit);
+                try (val results = statement.executeQuery()) {
+                    while (results.next()) {
+                        hits.add(new TranscriptHit(results.getLong("id"),
+                                                   results.getObject("ticket_id", Long.class),
+                                                   results.getObject("trace_ticket_id", UUID.class),
+                                                   results.getString("name"),
+                                                   results.getObject("closed_at", OffsetDateTime.class),
+                                                   results.getFloat("rank"),
+                                                   results.getString("headline")));
+                    }
+                }
+            }
+            return hits;
+        });
+    }
+}
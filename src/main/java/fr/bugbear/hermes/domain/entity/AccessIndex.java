@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.entity;
+
+import fr.bugbear.hermes.utils.LongLongHashMap;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Allowed users and roles, compiled for fast lookups. Immutable once compiled.
+ */
+public final class AccessIndex {
+
+    private final LongLongHashMap users;
+    private final LongLongHashMap roles;
+
+    private AccessIndex(LongLongHashMap users, LongLongHashMap roles) {
+        this.users = users;
+        this.roles = roles;
+    }
+
+    public static AccessIndex compile(Collection<Long> allowedUsers, Collection<Long> allowedRoles) {
+        var users = new LongLongHashMap(allowedUsers.size());
+        var roles = new LongLongHashMap(allowedRoles.size());
+        for (Long user : allowedUsers)
+            if (user != null)
+                users.put(user, 1L);
+        for (Long role : allowedRoles)
+            if (role != null)
+                roles.put(role, 1L);
+        return new AccessIndex(users, roles);
+    }
+
+    /**
+     * @param member
+     *         the member
+     *
+     * @return true if the member is allowed, either directly or through one of its roles
+     */
+    public boolean allows(Member member) {
+        if (users.containsKey(member.getIdLong()))
+            return true;
+        List<Role> memberRoles = member.getRoles();
+        for (int i = 0; i < memberRoles.size(); i++) {
+            if (roles.containsKey(memberRoles.get(i).getIdLong()))
+                return true;
+        }
+        return false;
+    }
+}
@@ -24,4 +24,8 @@ public interface CommandsEventType {
     String ASK_TITLE = "ask_title";
 
     String FE1TIKE = "fe1tike";
+
+    String RELOAD = "reload";
+
+    String SEARCH = "search";
 }
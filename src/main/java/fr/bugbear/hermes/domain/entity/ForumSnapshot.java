@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.entity;
+
+import fr.bugbear.hermes.data.model.ForumModel;
+import fr.bugbear.hermes.data.model.ManagerModel;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Immutable copy of a forum configuration, detached from the database
+ */
+public record ForumSnapshot(UUID id,
+                            String name,
+                            long channelId,
+                            Long webhookChannelId,
+                            String traceTag,
+                            ManagerIndex managers,
+                            List<PracticalTagWindow> practicalTags) {
+
+    public static ForumSnapshot of(ForumModel forum) {
+        return new ForumSnapshot(forum.id,
+                                 forum.name,
+                                 forum.channelId,
+                                 forum.webhookChannelId,
+                                 forum.traceTag,
+                                 ManagerIndex.compile(forum.managers.stream().map(ForumSnapshot::copyOf).toList()),
+                                 forum.practicalTags.stream().map(PracticalTagWindow::of).toList());
+    }
+
+    private static ManagerModel copyOf(ManagerModel manager) {
+        return new ManagerModel().withId(manager.id)
+                                 .withName(manager.name)
+                                 .withCustomMessage(manager.customMessage)
+                                 .withRoles(manager.roles.stream().filter(Objects::nonNull).toList())
+                                 .withUsers(manager.users.stream().filter(Objects::nonNull).toList());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.entity;
+
+import fr.bugbear.hermes.data.model.ManagerModel;
+import fr.bugbear.hermes.utils.LongLongHashMap;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Managers of a forum or a trace configuration, compiled for fast lookups.
+ * <p>
+ * User and role IDs are mapped to the position of the first manager declaring them, so resolving the manager of a
+ * member is one lookup for the member plus one per role, without allocating. Immutable once compiled.
+ */
+public final class ManagerIndex {
+
+    private static final long NONE = -1L;
+
+    private final ManagerModel[] managers;
+    private final LongLongHashMap managerByUser;
+    private final LongLongHashMap managerByRole;
+
+    private ManagerIndex(ManagerModel[] managers, LongLongHashMap managerByUser, LongLongHashMap managerByRole) {
+        this.managers = managers;
+        this.managerByUser = managerByUser;
+        this.managerByRole = managerByRole;
+    }
+
+    /**
+     * Compile a list of managers, the first manager matching a member being the one returned by
+     * {@link #resolve(Member)}
+     *
+     * @param managers
+     *         the managers
+     *
+     * @return the compiled index
+     */
+    public static ManagerIndex compile(Collection<ManagerModel> managers) {
+        var array = managers.toArray(ManagerModel[]::new);
+        var byUser = new LongLongHashMap(array.length * 4);
+        var byRole = new LongLongHashMap(array.length * 4);
+        // iterate backwards so that the first manager wins
+        for (int i = array.length - 1; i >= 0; i--) {
+            for (Long user : array[i].users)
+                if (user != null)
+                    byUser.put(user, i);
+            for (Long role : array[i].roles)
+                if (role != null)
+                    byRole.put(role, i);
+        }
+        return new ManagerIndex(array, byUser, byRole);
+    }
+
+    private int position(Member member) {
+        long best = managerByUser.get(member.getIdLong(), NONE);
+        List<Role> roles = member.getRoles();
+        for (int i = 0; i < roles.size(); i++) {
+            long position = managerByRole.get(roles.get(i).getIdLong(), NONE);
+            if (position != NONE && (best == NONE || position < best))
+                best = position;
+        }
+        return (int) best;
+    }
+
+    /**
+     * Get the manager configuration of a member
+     *
+     * @param member
+     *         the member
+     *
+     * @return the first manager configuration matching the member, by user or by role
+     */
+    public Optional<ManagerModel> resolve(Member member) {
+        int position = position(member);
+        return position < 0 ? Optional.empty() : Optional.of(managers[position]);
+    }
+
+    public boolean isManager(Member member) {
+        return position(member) >= 0;
+    }
+
+    public List<ManagerModel> getManagers() {
+        return List.of(managers);
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.entity;
+
+import fr.bugbear.hermes.data.model.PracticalTagModel;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Forum tag automatically applied to new tickets during a time window
+ */
+public record PracticalTagWindow(long tagId, ZonedDateTime fromDateTime, ZonedDateTime endDateTime) {
+
+    public static PracticalTagWindow of(PracticalTagModel practicalTag) {
+        return new PracticalTagWindow(practicalTag.tagId, practicalTag.fromDateTime, practicalTag.endDateTime);
+    }
+
+    public boolean isActive(ZonedDateTime now) {
+        return fromDateTime.isBefore(now) && endDateTime.isAfter(now);
+    }
+}
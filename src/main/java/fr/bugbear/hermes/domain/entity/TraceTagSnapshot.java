@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.entity;
+
+import fr.bugbear.hermes.data.model.TraceConfigModel;
+
+import java.time.ZonedDateTime;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Immutable copy of a trace configuration, with its access compiled, used to answer the {@code /trace} command
+ * without the database
+ */
+public record TraceTagSnapshot(UUID id,
+                               long guildId,
+                               String tag,
+                               String lowerTag,
+                               ZonedDateTime fromDateTime,
+                               ZonedDateTime endDateTime,
+                               AccessIndex access) {
+
+    public static TraceTagSnapshot of(TraceConfigModel traceConfig) {
+        return new TraceTagSnapshot(traceConfig.id,
+                                    traceConfig.guildId,
+                                    traceConfig.tag,
+                                    traceConfig.tag.toLowerCase(Locale.ROOT),
+                                    traceConfig.fromDateTime,
+                                    traceConfig.endDateTime,
+                                    AccessIndex.compile(orEmpty(traceConfig.usersAllowed),
+                                                        orEmpty(traceConfig.rolesAllowed)));
+    }
+
+    private static Set<Long> orEmpty(Set<Long> ids) {
+        return ids == null ? Set.of() : ids;
+    }
+
+    public boolean isActive(ZonedDateTime now) {
+        return fromDateTime.isBefore(now) && endDateTime.isAfter(now);
+    }
+}
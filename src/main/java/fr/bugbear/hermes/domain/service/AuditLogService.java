@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.utils.LongLongHashMap;
+import io.opentelemetry.instrumentation.annotations.WithSpan;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.val;
+import net.dv8tion.jda.api.audit.ActionType;
+import net.dv8tion.jda.api.audit.AuditLogEntry;
+import net.dv8tion.jda.api.audit.AuditLogKey;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.UserSnowflake;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the latest thread update audit log entries received from the gateway, to know who archived or locked a
+ * thread without calling the audit log REST endpoint.
+ * <p>
+ * The audit log entry may be received after the thread update event, so when the events are handled asynchronously a
+ * lookup waits for it a short time before falling back to the REST endpoint. When they are handled inline, the entry
+ * can only be received once the thread update is handled, so the buffer is only checked once.
+ */
+@ApplicationScoped
+public class AuditLogService implements Logged {
+
+    private static final long NONE = -1L;
+    /**
+     * Tolerance between the archive timestamp of a thread and the creation time of its audit log entry
+     */
+    private static final long TIMESTAMP_SKEW_MILLIS = 1_000;
+
+    @ConfigProperty(name = "audit-log.buffer.size", defaultValue = "256") Integer bufferSize;
+    @ConfigProperty(name = "audit-log.buffer.max-age", defaultValue = "1m") Duration maxAge;
+    @ConfigProperty(name = "audit-log.gateway-wait", defaultValue = "500ms") Duration gatewayWait;
+    @ConfigProperty(name = "discord.events.async.enabled", defaultValue = "false") boolean asyncEvents;
+
+    private final ConcurrentHashMap<Long, GuildAuditLog> guilds = new ConcurrentHashMap<>();
+    private final LongAdder bufferHits = new LongAdder();
+    private final LongAdder restFallbacks = new LongAdder();
+
+    /**
+     * Ring buffer of the latest entries of a guild, indexed by target ID
+     * <p>
+     * A lock is used rather than a monitor so that a virtual thread waiting for an entry doesn't pin its carrier.
+     */
+    private static final class GuildAuditLog {
+        private final long[] targets;
+        private final long[] users;
+        private final long[] times;
+        private final LongLongHashMap slotByTarget;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition recorded = lock.newCondition();
+        private int next = 0;
+
+        private GuildAuditLog(int capacity) {
+            targets = new long[capacity];
+            users = new long[capacity];
+            times = new long[capacity];
+            slotByTarget = new LongLongHashMap(capacity);
+        }
+
+        private void record(long target, long user, long time) {
+            lock.lock();
+            try {
+                val slot = next;
+                next = (next + 1) % targets.length;
+                // forget the overwritten entry, unless a newer entry for the same target exists
+                if (times[slot] != 0 && slotByTarget.get(targets[slot], NONE) == slot)
+                    slotByTarget.remove(targets[slot]);
+                targets[slot] = target;
+                users[slot] = user;
+                times[slot] = time;
+                slotByTarget.put(target, slot);
+                recorded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Find the user of the latest entry of a target, waiting for it to be recorded
+         *
+         * @param target
+         *         the target ID
+         * @param notBefore
+         *         the oldest creation time accepted, in epoch milliseconds
+         * @param timeout
+         *         the longest time to wait for the entry, in nanoseconds
+         *
+         * @return the user ID, or {@link #NONE} if no entry was recorded in time
+         */
+        private long awaitUser(long target, long notBefore, long timeout) throws InterruptedException {
+            lock.lock();
+            try {
+                long remaining = timeout;
+                while (true) {
+                    val slot = (int) slotByTarget.get(target, NONE);
+                    if (slot >= 0 && times[slot] >= notBefore)
+                        return users[slot];
+                    if (remaining <= 0)
+                        return NONE;
+                    remaining = recorded.awaitNanos(remaining);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Record an audit log entry received from the gateway
+     *
+     * @param entry
+     *         the entry
+     */
+    public void record(AuditLogEntry entry) {
+        if (!archivesOrLocks(entry))
+            return;
+        getGuildAuditLog(entry.getGuild().getIdLong()).record(entry.getTargetIdLong(),
+                                                              entry.getUserIdLong(),
+                                                              entry.getTimeCreated().toInstant().toEpochMilli());
+    }
+
+    /**
+     * Find the user who archived or locked a thread
+     *
+     * @param guild
+     *         the guild of the thread
+     * @param threadId
+     *         the thread ID
+     * @param updatedAt
+     *         the time the thread was archived or locked, null if unknown
+     *
+     * @return the user, from the buffer or from the audit log REST endpoint when no entry made since the update is
+     *         received from the gateway in time
+     */
+    @WithSpan
+    public Optional<UserSnowflake> findThreadUpdater(Guild guild, long threadId, OffsetDateTime updatedAt) {
+        val notBefore = updatedAt != null
+                        ? updatedAt.toInstant().toEpochMilli() - TIMESTAMP_SKEW_MILLIS
+                        : System.currentTimeMillis() - maxAge.toMillis();
+        // handled inline, the entry can't be received while the event thread waits for it
+        val timeout = asyncEvents ? gatewayWait.toNanos() : 0;
+        try {
+            val userId = getGuildAuditLog(guild.getIdLong()).awaitUser(threadId, notBefore, timeout);
+            if (userId != NONE) {
+                bufferHits.increment();
+                return Optional.of(UserSnowflake.fromId(userId));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+        restFallbacks.increment();
+        logger().debug("No buffered audit log entry for thread {}, reading the audit logs", threadId);
+        // read the last audit log entries to get the user who archived the ticket
+        return guild.retrieveAuditLogs().type(ActionType.THREAD_UPDATE).limit(10).complete()
+                    .stream()
+                    .filter(log -> log.getTargetIdLong() == threadId
+                                   && log.getTimeCreated().toInstant().toEpochMilli() >= notBefore
+                                   && archivesOrLocks(log))
+                    .findFirst()
+                    .map(log -> UserSnowflake.fromId(log.getUserIdLong()));
+    }
+
+    private GuildAuditLog getGuildAuditLog(long guildId) {
+        return guilds.computeIfAbsent(guildId, id -> new GuildAuditLog(bufferSize));
+    }
+
+    /**
+     * Check if an entry archives or locks a thread. Unarchiving or unlocking it, as the bot does, and the other thread
+     * updates (name, tags, slow mode...) are ignored.
+     *
+     * @param entry
+     *         the audit log entry
+     *
+     * @return true if the entry is a thread update setting its archived or locked state
+     */
+    private static boolean archivesOrLocks(AuditLogEntry entry) {
+        return entry.getType() == ActionType.THREAD_UPDATE
+               && (setsTrue(entry, AuditLogKey.THREAD_ARCHIVED) || setsTrue(entry, AuditLogKey.THREAD_LOCKED));
+    }
+
+    private static boolean setsTrue(AuditLogEntry entry, AuditLogKey key) {
+        val change = entry.getChangeByKey(key);
+        return change != null && Boolean.TRUE.equals(change.getNewValue());
+    }
+
+    public long getBufferHits() {
+        return bufferHits.sum();
+    }
+
+    public long getRestFallbacks() {
+        return restFallbacks.sum();
+    }
+}
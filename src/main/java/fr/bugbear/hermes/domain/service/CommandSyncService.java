@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.CommandSyncModel;
+import fr.bugbear.hermes.data.repository.CommandSyncRepository;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.SneakyThrows;
+import lombok.val;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.interactions.commands.build.CommandData;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pushes the slash commands to Discord only when their definitions changed since the last push.
+ * <p>
+ * The definitions are hashed in a canonical form (commands sorted by name, JSON keys sorted), and the hash of the
+ * last successful push is stored per scope in the {@code command_sync} table.
+ */
+@ApplicationScoped
+public class CommandSyncService implements Logged {
+
+    public static final String GLOBAL_SCOPE = "global";
+
+    @Inject CommandSyncRepository commandSyncRepository;
+
+    @ConfigProperty(name = "discord.commands.force-sync", defaultValue = "false") boolean forceSync;
+
+    /**
+     * Push the global commands if they changed
+     *
+     * @param jda
+     *         the client
+     * @param commands
+     *         the definitions of every global command
+     */
+    public void syncGlobalCommands(JDA jda, List<? extends CommandData> commands) {
+        val start = System.currentTimeMillis();
+        val hash = hash(commands);
+        val stored = QuarkusTransaction.requiringNew()
+                                       .call(() -> commandSyncRepository.findByIdOptional(GLOBAL_SCOPE)
+                                                                        .map(sync -> sync.hash));
+        if (!forceSync && stored.isPresent() && stored.get().equals(hash)) {
+            logger().info("Global commands unchanged, sync skipped ({} ms)", System.currentTimeMillis() - start);
+            return;
+        }
+        jda.updateCommands()
+           .addCommands(commands)
+           .queue(registered -> {
+                      QuarkusTransaction.requiringNew().run(() -> save(GLOBAL_SCOPE, hash));
+                      logger().info("Global commands registered ({} commands, {} ms)",
+                                    registered.size(),
+                                    System.currentTimeMillis() - start);
+                  },
+                  error -> logger().error("Couldn't register the global commands", error));
+    }
+
+    private void save(String scope, String hash) {
+        val sync = commandSyncRepository.findByIdOptional(scope).orElseGet(() -> {
+            val created = new CommandSyncModel().withScope(scope);
+            commandSyncRepository.persist(created);
+            return created;
+        });
+        sync.hash = hash;
+        sync.updatedAt = ZonedDateTime.now();
+    }
+
+    /**
+     * Hash command definitions, independently of their order and of the order of their JSON keys
+     *
+     * @param commands
+     *         the commands
+     *
+     * @return the SHA-256 of the definitions, in hexadecimal
+     */
+    @SneakyThrows
+    public static String hash(List<? extends CommandData> commands) {
+        val digest = MessageDigest.getInstance("SHA-256");
+        commands.stream()
+                .sorted(Comparator.comparing(CommandData::getName))
+                .forEach(command -> {
+                    digest.update(canonical(command.toData().toMap()).getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) '\n');
+                });
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String canonical(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            val builder = new StringBuilder("{");
+            new TreeMap<>(map).forEach((key, entry) -> builder.append('"')
+                                                                .append(key)
+                                                                .append("\":")
+                                                                .append(canonical(entry))
+                                                                .append(','));
+            return builder.append('}').toString();
+        }
+        if (value instanceof List<?> list) {
+            val builder = new StringBuilder("[");
+            list.forEach(entry -> builder.append(canonical(entry)).append(','));
+            return builder.append(']').toString();
+        }
+        if (value instanceof String string)
+            return '"' + string + '"';
+        return String.valueOf(value);
+    }
+}
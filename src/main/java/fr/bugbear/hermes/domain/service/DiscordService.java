@@ -7,31 +7,38 @@ package fr.bugbear.hermes.domain.service;
 
 import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.domain.entity.CloseType;
-import fr.bugbear.hermes.presentation.bot.BotAdapterStarter;
+import fr.bugbear.hermes.utils.ComponentId;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
-import lombok.AllArgsConstructor;
 import lombok.val;
-import net.dv8tion.jda.api.audit.ActionType;
+import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.channel.concrete.ThreadChannel;
 import net.dv8tion.jda.api.events.channel.update.ChannelUpdateAppliedTagsEvent;
 import net.dv8tion.jda.api.events.channel.update.ChannelUpdateNameEvent;
 import net.dv8tion.jda.api.events.channel.update.GenericChannelUpdateEvent;
+import net.dv8tion.jda.api.events.guild.GuildAuditLogEntryCreateEvent;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.CommandAutoCompleteInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
 import net.dv8tion.jda.api.events.session.ReadyEvent;
 import net.dv8tion.jda.api.interactions.commands.Command;
+import net.dv8tion.jda.api.interactions.commands.DefaultMemberPermissions;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.interactions.commands.build.Commands;
 import net.dv8tion.jda.api.interactions.commands.build.OptionData;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static fr.bugbear.hermes.domain.entity.ButtonEventType.REOPEN_TICKET;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.ASK_TITLE;
@@ -40,17 +47,81 @@ import static fr.bugbear.hermes.domain.entity.CommandsEventType.CLOSE_TRACE;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.FE1TIKE;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.GOOGLE;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.LINK;
+import static fr.bugbear.hermes.domain.entity.CommandsEventType.RELOAD;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.RENAME;
+import static fr.bugbear.hermes.domain.entity.CommandsEventType.SEARCH;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.TRACE;
 import static fr.bugbear.hermes.domain.entity.CommandsEventType.TRACE_VOCAL;
 import static fr.bugbear.hermes.domain.entity.ModalEventType.NEW_TRACE_TICKET;
 
-@ApplicationScoped @AllArgsConstructor(onConstructor_ = {@Inject})
+@ApplicationScoped
 public class DiscordService implements Logged {
 
     @Inject TicketService ticketService;
     @Inject TraceTicketService traceTicketService;
+    @Inject TraceTagIndex traceTagIndex;
     @Inject ForumService forumService;
+    @Inject AuditLogService auditLogService;
+    @Inject TranscriptStore transcriptStore;
+    @Inject CommandSyncService commandSyncService;
+    @Inject ReconciliationService reconciliationService;
+    @Inject TraceChannelPool traceChannelPool;
+    @Inject MeterRegistry meterRegistry;
+
+    /**
+     * Handlers of the slash commands by name, and of the buttons and modals by component type. Registered once.
+     */
+    private Map<String, Consumer<SlashCommandInteractionEvent>> commandHandlers;
+    private Map<String, Consumer<ButtonInteractionEvent>> buttonHandlers;
+    private Map<String, Consumer<ModalInteractionEvent>> modalHandlers;
+
+    @PostConstruct void registerHandlers() {
+        val commands = new HashMap<String, Consumer<SlashCommandInteractionEvent>>();
+        commands.put(CLOSE, ticketService::closeTicket);
+        commands.put(RENAME, ticketService::renameTicket);
+        commands.put(TRACE, traceTicketService::traceTicket);
+        commands.put(TRACE_VOCAL, traceTicketService::associateVocalChannel);
+        commands.put(CLOSE_TRACE, traceTicketService::closeTraceTicket);
+        commands.put(ASK_TITLE, forumService::askForTitle);
+        commands.put(LINK, ticketService::linkTicket);
+        commands.put(FE1TIKE, this::onFe1Tike);
+        commands.put(RELOAD, this::onReload);
+        commands.put(SEARCH, transcriptStore::search);
+        commandHandlers = timed("command", commands);
+
+        buttonHandlers = timed("button", Map.of(REOPEN_TICKET, ticketService::reopenTicket));
+        modalHandlers = timed("modal", Map.of(NEW_TRACE_TICKET, traceTicketService::onModalTraceTicket));
+    }
+
+    /**
+     * Wrap handlers with a timer, registered once per handler so that no meter is looked up when an event is handled
+     *
+     * @param kind
+     *         the kind of interaction handled
+     * @param handlers
+     *         the handlers, by name
+     *
+     * @return the timed handlers, by name
+     */
+    private <E> Map<String, Consumer<E>> timed(String kind, Map<String, Consumer<E>> handlers) {
+        val timed = new HashMap<String, Consumer<E>>();
+        handlers.forEach((name, handler) -> {
+            val timer = Timer.builder("hermes.handler")
+                             .description("Time spent handling an interaction")
+                             .tag("kind", kind)
+                             .tag("name", name)
+                             .register(meterRegistry);
+            timed.put(name, event -> {
+                val start = System.nanoTime();
+                try {
+                    handler.accept(event);
+                } finally {
+                    timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            });
+        });
+        return Map.copyOf(timed);
+    }
 
     public void onReady(ReadyEvent event) {
         logger().info("Bot is ready : {}", event.getJDA().getSelfUser());
@@ -94,21 +165,32 @@ public class DiscordService implements Logged {
         val fe1Tike = Commands.slash(FE1TIKE, "Generic messages to ask student to open a ticket")
                               .setGuildOnly(true);
 
-        // global commands
-        BotAdapterStarter.client.updateCommands()
-                                .addCommands(closeTicket,
-                                             closeTraceTicket,
-                                             renameTicket,
-                                             linkTicket,
-                                             traceTicket,
-                                             associateVocalToTrace,
-                                             googleCommand,
-                                             askTitle,
-                                             fe1Tike)
-                                .queue();
-
-        logger().info("Global commands registered");
-
+        val reload = Commands.slash(RELOAD, "Reload the forum and trace configuration from the database")
+                             .setGuildOnly(true)
+                             .setDefaultPermissions(DefaultMemberPermissions.enabledFor(Permission.ADMINISTRATOR));
+
+        val search = Commands.slash(SEARCH, "Search the transcripts of closed tickets")
+                             .setGuildOnly(true)
+                             .setDefaultPermissions(DefaultMemberPermissions.enabledFor(Permission.MANAGE_THREADS))
+                             .addOption(OptionType.STRING, "query", "Words to search, \"exact phrase\", -excluded", true);
+
+        // global commands, only pushed when their definitions changed
+        commandSyncService.syncGlobalCommands(event.getJDA(),
+                                              List.of(closeTicket,
+                                                      closeTraceTicket,
+                                                      renameTicket,
+                                                      linkTicket,
+                                                      traceTicket,
+                                                      associateVocalToTrace,
+                                                      googleCommand,
+                                                      askTitle,
+                                                      fe1Tike,
+                                                      reload,
+                                                      search));
+
+        // fix the tickets of threads created, archived or deleted while the bot was down
+        reconciliationService.reconcileAsync(event.getJDA());
+        traceChannelPool.start(event.getJDA());
     }
 
     public void onThreadCreate(ThreadChannel threadChannel) {
@@ -127,21 +209,14 @@ public class DiscordService implements Logged {
         val commandName = event.getName();
         logger().debug("Slash command : {}", commandName);
         try {
-            switch (commandName) {
-                case CLOSE -> ticketService.closeTicket(event);
-                case RENAME -> ticketService.renameTicket(event);
-                case TRACE -> traceTicketService.traceTicket(event);
-                case TRACE_VOCAL -> traceTicketService.associateVocalChannel(event);
-                case CLOSE_TRACE -> traceTicketService.closeTraceTicket(event);
-                case ASK_TITLE -> forumService.askForTitle(event);
-                case LINK -> ticketService.linkTicket(event);
-                case FE1TIKE -> onFe1Tike(event);
-                default -> {
-                    logger().warn("Unknown command : {}", commandName);
-                    event.reply("Unknown command, please contact an admin if the issue persists")
-                         .setEphemeral(true)
-                         .queue();
-                }
+            val handler = commandHandlers.get(commandName);
+            if (handler != null) {
+                handler.accept(event);
+            } else {
+                logger().warn("Unknown command : {}", commandName);
+                event.reply("Unknown command, please contact an admin if the issue persists")
+                     .setEphemeral(true)
+                     .queue();
             }
         } catch (Exception e) {
             UUID errorId = UUID.randomUUID();
@@ -174,9 +249,9 @@ public class DiscordService implements Logged {
     public void onModalInteraction(ModalInteractionEvent event) {
         try {
             val modalId = event.getModalId();
-
-            if (modalId.startsWith(NEW_TRACE_TICKET)) {
-                traceTicketService.onModalTraceTicket(event);
+            val handler = modalHandlers.get(ComponentId.type(modalId));
+            if (handler != null) {
+                handler.accept(event);
             } else {
                 logger().warn("Unknown modal : {}", modalId);
                 event.reply("Unknown modal, please contact an admin if the issue persists").setEphemeral(true).queue();
@@ -192,11 +267,25 @@ public class DiscordService implements Logged {
         }
     }
 
+    /**
+     * Get the key ordering a button after the other events of the ticket it acts on
+     *
+     * @param event
+     *         the button event
+     *
+     * @return the thread of the ticket, carried by the button ID, or the channel of the button if it doesn't act on
+     *         a ticket or was sent before the ID carried it
+     */
+    public long getButtonOrderingKey(ButtonInteractionEvent event) {
+        return ComponentId.key(event.getComponentId()).orElse(event.getChannel().getIdLong());
+    }
+
     public void onButtonInteraction(ButtonInteractionEvent event) {
         try {
             val buttonId = event.getComponentId();
-            if (buttonId.startsWith(REOPEN_TICKET)) {
-                ticketService.reopenTicket(event);
+            val handler = buttonHandlers.get(ComponentId.type(buttonId));
+            if (handler != null) {
+                handler.accept(event);
             } else {
                 logger().warn("Unknown button : {}", buttonId);
                 event.reply("Unknown button, please contact an admin if the issue persists").queue();
@@ -219,21 +308,31 @@ public class DiscordService implements Logged {
     }
 
     public void onTicketArchivedOrLocked(GenericChannelUpdateEvent<?> channelUpdateArchivedEvent) {
-        // get the user who archived the ticket
-        val guild = channelUpdateArchivedEvent.getGuild();
-
-        // read the last audit log entries to get the user who archived the ticket
-        guild.retrieveAuditLogs().type(ActionType.THREAD_UPDATE).limit(10).complete()
-             .stream()
-             .map(log -> log.getTargetIdLong() == channelUpdateArchivedEvent.getChannel().getIdLong()
-                         ? log.getUser() : null)
-             .filter(Objects::nonNull)
-             .findFirst()
-             .ifPresentOrElse(user -> ticketService
-                                      .onTicketArchivedOrLocked(channelUpdateArchivedEvent.getChannel().asThreadChannel(), user),
-                              () -> logger().warn("No user found for the thread update event : {}",
-                                                  channelUpdateArchivedEvent.getEntity().getIdLong()));
+        ticketService.onTicketArchivedOrLocked(channelUpdateArchivedEvent.getChannel().asThreadChannel());
+    }
+
+    public void onAuditLogEntry(GuildAuditLogEntryCreateEvent event) {
+        auditLogService.record(event.getEntry());
+    }
 
+    /**
+     * Reload the configuration cached in memory
+     *
+     * @param event
+     *         to handle
+     */
+    public void onReload(SlashCommandInteractionEvent event) {
+        event.deferReply(true).queue();
+        val forums = forumService.reload();
+        val traceTags = traceTagIndex.reload();
+        traceTicketService.clearCompiledConfigs();
+        logger().info("Configuration reloaded by {} ({} forums, {} trace tags)",
+                      event.getUser().getName(),
+                      forums,
+                      traceTags);
+        event.getHook()
+             .editOriginal("Configuration reloaded: %d forums, %d trace tags".formatted(forums, traceTags))
+             .queue();
     }
 
     public static final List<String> TROLL_MESSAGES = List.of(
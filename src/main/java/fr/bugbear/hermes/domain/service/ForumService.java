@@ -7,10 +7,16 @@ package fr.bugbear.hermes.domain.service;
 
 import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.data.model.ManagerModel;
-import fr.bugbear.hermes.data.model.PracticalTagModel;
 import fr.bugbear.hermes.data.repository.ForumRepository;
+import fr.bugbear.hermes.domain.entity.ForumSnapshot;
+import fr.bugbear.hermes.domain.entity.PracticalTagWindow;
+import io.opentelemetry.instrumentation.annotations.WithSpan;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
 import lombok.val;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.entities.Member;
@@ -20,6 +26,7 @@ import net.dv8tion.jda.api.entities.channel.forums.ForumTag;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 
 import java.time.ZonedDateTime;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -28,44 +35,123 @@ import java.util.stream.Collectors;
 public class ForumService implements Logged {
     @Inject ForumRepository forumRepository;
 
+    /**
+     * Configuration of every forum, by forum channel ID. Replaced as a whole on each reload.
+     */
+    private volatile Map<Long, ForumSnapshot> forums;
+
+    void onStart(@Observes StartupEvent event) {
+        reload();
+    }
+
+    @Scheduled(every = "{forum.cache.refresh-interval}")
+    void scheduledReload() {
+        reload();
+    }
+
+    /**
+     * Reload the configuration of every forum from the database
+     *
+     * @return the number of forums loaded
+     */
+    @Transactional
+    public int reload() {
+        forums = forumRepository.listAll()
+                                .stream()
+                                .filter(forum -> forum.channelId != null)
+                                .map(ForumSnapshot::of)
+                                .collect(Collectors.toUnmodifiableMap(ForumSnapshot::channelId,
+                                                                      forum -> forum,
+                                                                      this::keepFirstForum));
+        logger().debug("Forum configuration reloaded ({} forums)", forums.size());
+        return forums.size();
+    }
+
+    /**
+     * Several forums configured for the same channel: keep the first one, like the lookup by channel did
+     */
+    private ForumSnapshot keepFirstForum(ForumSnapshot first, ForumSnapshot duplicate) {
+        logger().warn("Forums {} and {} are configured for the same channel {}, only {} is used",
+                      first.id(),
+                      duplicate.id(),
+                      first.channelId(),
+                      first.id());
+        return first;
+    }
+
+    /**
+     * Get the configuration of a forum
+     *
+     * @param forumChannel
+     *         the forum channel
+     *
+     * @return the forum configuration if the forum is managed by Hermes
+     */
+    public Optional<ForumSnapshot> getForum(ForumChannel forumChannel) {
+        return Optional.ofNullable(getForums().get(forumChannel.getIdLong()));
+    }
+
+    /**
+     * Get the configuration of every forum
+     *
+     * @return the forum configurations, by forum channel ID
+     */
+    public Map<Long, ForumSnapshot> getForums() {
+        var current = forums;
+        if (current == null) {
+            reload();
+            current = forums;
+        }
+        return current;
+    }
+
+    @WithSpan
     public Optional<ManagerModel> getManagerConfig(Member member, ForumChannel forumChannel) {
-        val forum = forumRepository.findByForumChannel(forumChannel);
-        if (forum.isEmpty()) return Optional.empty();
-        val forumModel = forum.get();
-        val userId = member.getIdLong();
-        val userRoles = member.getRoles();
-
-        return forumModel.managers.stream()
-                                  .filter(m -> m.users.contains(userId) ||
-                                               m.roles.stream()
-                                                      .anyMatch(role -> userRoles.stream().anyMatch(r -> r.getIdLong()
-                                                                                                         == role)))
-                                  .findFirst();
+        return getForum(forumChannel).flatMap(forum -> forum.managers().resolve(member));
     }
 
     public boolean isManager(Member member, ForumChannel forumChannel) {
-        return getManagerConfig(member, forumChannel).isPresent();
+        val forum = getForum(forumChannel);
+        return forum.isPresent() && forum.get().managers().isManager(member);
+    }
+
+    /**
+     * Check if a member manages at least one forum, without loading the configuration if it isn't loaded yet
+     *
+     * @param member
+     *         the member
+     *
+     * @return true if the member is a manager of any forum
+     */
+    public boolean isManagerOfAnyForum(Member member) {
+        val current = forums;
+        if (current == null)
+            return false;
+        for (val forum : current.values())
+            if (forum.managers().isManager(member))
+                return true;
+        return false;
     }
 
     public boolean isNotManager(Member member, ForumChannel forumChannel) {
-        return getManagerConfig(member, forumChannel).isEmpty();
+        return !isManager(member, forumChannel);
     }
 
     public Optional<ForumTag> getTraceTag(ForumChannel forumChannel) {
-        val forum = forumRepository.findByForumChannel(forumChannel);
+        val forum = getForum(forumChannel);
         if (forum.isEmpty()) return Optional.empty();
         val forumModel = forum.get();
-        return forumChannel.getAvailableTagsByName(forumModel.traceTag, true).stream().findFirst();
+        return forumChannel.getAvailableTagsByName(forumModel.traceTag(), true).stream().findFirst();
     }
 
-    public Set<PracticalTagModel> getCurrentPracticalTags(ForumChannel forumChannel) {
-        val forum = forumRepository.findByForumChannel(forumChannel);
+    public Set<PracticalTagWindow> getCurrentPracticalTags(ForumChannel forumChannel) {
+        val forum = getForum(forumChannel);
         if (forum.isEmpty()) return Set.of();
         val forumModel = forum.get();
         val now = ZonedDateTime.now();
-        return forumModel.practicalTags.stream()
-                                       .filter(t -> t.fromDateTime.isBefore(now) && t.endDateTime.isAfter(now))
-                                       .collect(Collectors.toSet());
+        return forumModel.practicalTags().stream()
+                                         .filter(t -> t.isActive(now))
+                                         .collect(Collectors.toSet());
     }
 
     public void askForTitle(SlashCommandInteractionEvent event) {
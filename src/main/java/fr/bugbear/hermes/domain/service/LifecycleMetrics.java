@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the ticket lifecycles (creation, closing...), recorded per step in the {@code hermes.ticket.lifecycle}
+ * timers.
+ * <p>
+ * Each step records the time elapsed since the start of its lifecycle, so that steps running concurrently can be
+ * compared on the same scale. The timers are registered once, a step only records in its own.
+ */
+@ApplicationScoped
+public class LifecycleMetrics implements Logged {
+
+    /**
+     * Step of a lifecycle
+     */
+    public enum Step {
+        CREATE_PERSIST("ticket.create", "persist"),
+        CREATE_THREAD("ticket.create", "thread"),
+        CREATE_WEBHOOK("ticket.create", "webhook"),
+        CREATE_TOTAL("ticket.create", "total"),
+        CLOSE_UPDATE("ticket.close", "update"),
+        CLOSE_OWNER("ticket.close", "owner"),
+        CLOSE_TOTAL("ticket.close", "total");
+
+        private final String lifecycle;
+        private final String step;
+
+        Step(String lifecycle, String step) {
+            this.lifecycle = lifecycle;
+            this.step = step;
+        }
+    }
+
+    @Inject MeterRegistry meterRegistry;
+
+    private final Map<Step, Timer> timers = new EnumMap<>(Step.class);
+
+    @PostConstruct
+    void register() {
+        for (val step : Step.values())
+            timers.put(step, Timer.builder("hermes.ticket.lifecycle")
+                                  .description("Time elapsed from the start of a ticket lifecycle to the end of a step")
+                                  .tag("lifecycle", step.lifecycle)
+                                  .tag("step", step.step)
+                                  .register(meterRegistry));
+    }
+
+    /**
+     * Start timing a lifecycle
+     *
+     * @return the timer used to record the steps
+     */
+    public LifecycleTimer start() {
+        return new LifecycleTimer(System.nanoTime());
+    }
+
+    public class LifecycleTimer {
+        private final long start;
+
+        private LifecycleTimer(long start) {
+            this.start = start;
+        }
+
+        /**
+         * Record the end of a step. Safe to call from any thread.
+         *
+         * @param step
+         *         the step
+         */
+        public void step(Step step) {
+            long elapsed = System.nanoTime() - start;
+            timers.get(step).record(elapsed, TimeUnit.NANOSECONDS);
+            logger().debug("{} {} after {} ms", step.lifecycle, step.step, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.repository.TicketRepository;
+import fr.bugbear.hermes.utils.LongLongHashMap;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import lombok.val;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Decides which members JDA keeps in its cache when the member cache mode is {@link Mode#MINIMAL}.
+ * <p>
+ * Forum managers, managers of the open or upcoming trace configurations, and owners of an open ticket are always
+ * cached, other members are kept in a bounded LRU of the most recently seen ones and are retrieved again from Discord
+ * once evicted.
+ */
+@ApplicationScoped
+public class MemberCacheService implements Logged {
+
+    public enum Mode {
+        /**
+         * Every member of every guild is cached, chunked at startup
+         */
+        ALL,
+        /**
+         * Only forum and trace managers, ticket owners and recently active members are cached
+         */
+        MINIMAL
+    }
+
+    @Inject TicketRepository ticketRepository;
+    @Inject ForumService forumService;
+    @Inject TraceTagIndex traceTagIndex;
+
+    @ConfigProperty(name = "discord.member-cache.recent-size", defaultValue = "1000") Integer recentSize;
+
+    /**
+     * Number of open or in progress tickets, by owner ID
+     */
+    private final LongLongHashMap activeTicketsByOwner = new LongLongHashMap(1024);
+
+    void onStart(@Observes StartupEvent event) {
+        load();
+    }
+
+    @Transactional
+    void load() {
+        val owners = ticketRepository.findActiveTicketOwners();
+        synchronized (activeTicketsByOwner) {
+            activeTicketsByOwner.clear();
+            owners.forEach(owner -> activeTicketsByOwner.put(owner, activeTicketsByOwner.get(owner, 0) + 1));
+            logger().info("{} owners of active tickets loaded", activeTicketsByOwner.size());
+        }
+    }
+
+    /**
+     * Get the member cache policy of a mode
+     *
+     * @param mode
+     *         the member cache mode
+     *
+     * @return the policy to give to JDA
+     */
+    public MemberCachePolicy policy(Mode mode) {
+        if (mode == Mode.ALL)
+            return MemberCachePolicy.ALL;
+        MemberCachePolicy pinned = this::isPinned;
+        // members evicted from the LRU are unloaded unless they became managers or ticket owners in the meantime
+        return pinned.or(MemberCachePolicy.lru(recentSize).unloadUnless(pinned));
+    }
+
+    private boolean isPinned(Member member) {
+        return ownsActiveTicket(member.getIdLong())
+               || forumService.isManagerOfAnyForum(member)
+               || traceTagIndex.isManagerOfAnyTrace(member);
+    }
+
+    public boolean ownsActiveTicket(long userId) {
+        synchronized (activeTicketsByOwner) {
+            return activeTicketsByOwner.containsKey(userId);
+        }
+    }
+
+    /**
+     * Record that a user owns one more open or in progress ticket
+     *
+     * @param ownerId
+     *         the ticket owner ID
+     */
+    public void ticketActivated(Long ownerId) {
+        if (ownerId == null)
+            return;
+        synchronized (activeTicketsByOwner) {
+            activeTicketsByOwner.put(ownerId, activeTicketsByOwner.get(ownerId, 0) + 1);
+        }
+    }
+
+    /**
+     * Record that a ticket of a user was closed or deleted
+     *
+     * @param ownerId
+     *         the ticket owner ID
+     */
+    public void ticketDeactivated(Long ownerId) {
+        if (ownerId == null)
+            return;
+        synchronized (activeTicketsByOwner) {
+            val count = activeTicketsByOwner.get(ownerId, 0);
+            if (count <= 1)
+                activeTicketsByOwner.remove(ownerId);
+            else
+                activeTicketsByOwner.put(ownerId, count - 1);
+        }
+    }
+}
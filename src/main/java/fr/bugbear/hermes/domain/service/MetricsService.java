@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.repository.TicketRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import lombok.val;
+
+import java.util.Objects;
+import java.util.function.ToDoubleFunction;
+
+import static fr.bugbear.hermes.presentation.bot.BotAdapterStarter.client;
+
+/**
+ * Registers the meters of the counters kept by the services, exposed on the Prometheus endpoint.
+ * <p>
+ * Counters already kept by the services are read by the registry when scraped, so nothing is added on their hot
+ * paths. The active tickets by forum are counted periodically.
+ */
+@ApplicationScoped
+public class MetricsService implements Logged {
+
+    @Inject MeterRegistry registry;
+    @Inject TicketRepository ticketRepository;
+    @Inject WebhookService webhookService;
+    @Inject AuditLogService auditLogService;
+    @Inject TicketIndex ticketIndex;
+    @Inject ParticipationBuffer participationBuffer;
+
+    private MultiGauge activeTickets;
+
+    void onStart(@Observes StartupEvent event) {
+        counter("hermes.webhook.edits", "result", "requested", webhookService, WebhookService::getEditsRequested);
+        counter("hermes.webhook.edits", "result", "coalesced", webhookService, WebhookService::getEditsCoalesced);
+        counter("hermes.webhook.edits", "result", "skipped", webhookService, WebhookService::getEditsSkipped);
+        counter("hermes.webhook.edits", "result", "sent", webhookService, WebhookService::getEditsSent);
+        counter("hermes.audit-log.lookups", "source", "buffer", auditLogService, AuditLogService::getBufferHits);
+        counter("hermes.audit-log.lookups", "source", "rest", auditLogService, AuditLogService::getRestFallbacks);
+        counter("hermes.ticket-index.lookups", "result", "hit", ticketIndex, TicketIndex::getHits);
+        counter("hermes.ticket-index.lookups", "result", "miss", ticketIndex, TicketIndex::getMisses);
+        FunctionCounter.builder("hermes.participations.dropped", participationBuffer, ParticipationBuffer::getDropped)
+                       .description("Participations dropped while the buffer was full and its writes failing")
+                       .register(registry);
+
+        Gauge.builder("hermes.discord.gateway.ping", () -> {
+                 val current = client;
+                 return current == null ? Double.NaN : current.getGatewayPing();
+             })
+             .baseUnit("milliseconds")
+             .description("Time between the last heartbeat and its acknowledgement")
+             .register(registry);
+
+        activeTickets = MultiGauge.builder("hermes.tickets.active")
+                                  .description("Open and in progress tickets, by forum")
+                                  .register(registry);
+        countActiveTickets();
+    }
+
+    private <T> void counter(String name, String tag, String value, T source, ToDoubleFunction<T> count) {
+        FunctionCounter.builder(name, source, count).tag(tag, value).register(registry);
+    }
+
+    @Scheduled(every = "{metrics.tickets.refresh-interval}")
+    @Transactional
+    void countActiveTickets() {
+        if (activeTickets == null)
+            return;
+        val rows = ticketRepository.countActiveTickets()
+                                   .stream()
+                                   .map(count -> MultiGauge.Row.of(
+                                           Tags.of("forum", Objects.requireNonNullElse(count.forumName(), "unknown"),
+                                                   "status", count.status().name()),
+                                           count.count()))
+                                   .toList();
+        // forums without active tickets anymore are removed
+        activeTickets.register(rows, true);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.repository.TicketParticipantRepository;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind buffer for ticket participations.
+ * <p>
+ * Participations are deduplicated per ticket in memory and written every few seconds, or once the buffer is full, as
+ * one JDBC batch of participant inserts plus one batch of {@code updated_at} updates (one row per ticket). A batch
+ * that couldn't be written is put back in the buffer, to be written with the next one. While the writes fail, the
+ * buffer holds at most {@code participation.buffer.max-pending} participations, the new ones being dropped and counted.
+ */
+@ApplicationScoped
+public class ParticipationBuffer implements Logged {
+
+    @Inject TicketParticipantRepository ticketParticipantRepository;
+
+    @ConfigProperty(name = "participation.buffer.max-entries", defaultValue = "500") Integer maxEntries;
+    @ConfigProperty(name = "participation.buffer.max-pending", defaultValue = "50000") Integer maxPending;
+
+    private static final String INSERT_PARTICIPANT = "insert into ticket_participant (id, taken_at, user_id, ticket_id)"
+                                                     + " values (?, ?, ?, ?)";
+
+    private static final String UPDATE_TICKET = "update ticket set updated_at = ?"
+                                                + " where id = ? and (updated_at is null or updated_at < ?)";
+
+    /**
+     * Participations waiting to be written, by ticket ID
+     */
+    private final ConcurrentHashMap<Long, PendingParticipations> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Number of distinct (ticket, member) pairs waiting to be written
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Set while the last flush failed, only the scheduled flush retries then, instead of every registration
+     */
+    private volatile boolean failing = false;
+
+    /**
+     * Participations dropped while the buffer was full
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Participations of a single ticket. Only mutated inside {@link ConcurrentHashMap#compute}, and read once removed
+     * from the map.
+     */
+    private static class PendingParticipations {
+        private final Map<Long, ZonedDateTime> firstMessageByUser = new HashMap<>();
+        private ZonedDateTime lastActivity;
+
+        private boolean add(long userId, ZonedDateTime at) {
+            touch(at);
+            return firstMessageByUser.putIfAbsent(userId, at) == null;
+        }
+
+        private void touch(ZonedDateTime at) {
+            if (lastActivity == null || at.isAfter(lastActivity))
+                lastActivity = at;
+        }
+
+        /**
+         * Add participations that couldn't be written, keeping the first message of each member
+         *
+         * @return the number of members added
+         */
+        private int addAll(PendingParticipations failed) {
+            var added = 0;
+            for (val participation : failed.firstMessageByUser.entrySet()) {
+                val userId = participation.getKey();
+                val at = participation.getValue();
+                if (add(userId, at))
+                    added++;
+                else if (at.isBefore(firstMessageByUser.get(userId)))
+                    firstMessageByUser.put(userId, at);
+            }
+            if (failed.lastActivity.isAfter(lastActivity))
+                lastActivity = failed.lastActivity;
+            return added;
+        }
+    }
+
+    /**
+     * Register the participation of a member in a ticket
+     *
+     * @param ticketId
+     *         the ticket ID
+     * @param userId
+     *         the member ID
+     * @param at
+     *         time of the message
+     */
+    public void register(long ticketId, long userId, ZonedDateTime at) {
+        // the writes fail and the buffer is full, only the participations already buffered are updated
+        val full = failing && size.get() >= maxPending;
+        pending.compute(ticketId, (id, current) -> {
+            if (full && (current == null || !current.firstMessageByUser.containsKey(userId))) {
+                dropped.increment();
+                if (current != null)
+                    current.touch(at);
+                return current;
+            }
+            val participations = current == null ? new PendingParticipations() : current;
+            if (participations.add(userId, at))
+                size.incrementAndGet();
+            return participations;
+        });
+        if (size.get() >= maxEntries && !failing)
+            flush();
+    }
+
+    @Scheduled(every = "{participation.buffer.flush-interval}",
+               concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void scheduledFlush() {
+        flush();
+    }
+
+    /**
+     * Write the participations left, once no handler can register new ones
+     */
+    public void drain() {
+        logger().info("Draining participation buffer ({} entries)", size.get());
+        flush();
+        if (size.get() > 0)
+            logger().error("{} participations couldn't be written at shutdown", size.get());
+    }
+
+    /**
+     * Write all the buffered participations, in their own transaction. If it fails, they are put back in the buffer.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty())
+            return;
+        val batch = new HashMap<Long, PendingParticipations>();
+        for (val ticketId : pending.keySet()) {
+            val participations = pending.remove(ticketId);
+            if (participations != null) {
+                batch.put(ticketId, participations);
+                size.addAndGet(-participations.firstMessageByUser.size());
+            }
+        }
+        if (batch.isEmpty())
+            return;
+
+        try {
+            QuarkusTransaction.requiringNew().run(() -> write(batch));
+            failing = false;
+        } catch (Exception e) {
+            failing = true;
+            logger().error("Couldn't write the participations of {} tickets, kept for the next flush ({} dropped"
+                           + " since the start)",
+                           batch.size(),
+                           dropped.sum(),
+                           e);
+            batch.forEach(this::restore);
+        }
+    }
+
+    private void restore(long ticketId, PendingParticipations failed) {
+        pending.compute(ticketId, (id, current) -> {
+            if (current == null) {
+                size.addAndGet(failed.firstMessageByUser.size());
+                return failed;
+            }
+            size.addAndGet(current.addAll(failed));
+            return current;
+        });
+    }
+
+    private void write(Map<Long, PendingParticipations> batch) {
+        val existing = ticketParticipantRepository.findUserIdsByTickets(batch.keySet());
+        val session = ticketParticipantRepository.getEntityManager().unwrap(Session.class);
+        session.doWork(connection -> {
+            var inserted = 0;
+            try (val insert = connection.prepareStatement(INSERT_PARTICIPANT);
+                 val update = connection.prepareStatement(UPDATE_TICKET)) {
+                for (val entry : batch.entrySet()) {
+                    val ticketId = entry.getKey();
+                    val participations = entry.getValue();
+                    val known = existing.getOrDefault(ticketId, Set.of());
+                    for (val participation : participations.firstMessageByUser.entrySet()) {
+                        if (known.contains(participation.getKey()))
+                            continue;
+                        insert.setObject(1, UUID.randomUUID());
+                        insert.setObject(2, participation.getValue().toOffsetDateTime());
+                        insert.setLong(3, participation.getKey());
+                        insert.setLong(4, ticketId);
+                        insert.addBatch();
+                        inserted++;
+                    }
+                    val lastActivity = participations.lastActivity.toOffsetDateTime();
+                    update.setObject(1, lastActivity);
+                    update.setLong(2, ticketId);
+                    update.setObject(3, lastActivity);
+                    update.addBatch();
+                }
+                insert.executeBatch();
+                update.executeBatch();
+            }
+            logger().debug("Flushed participations of {} tickets ({} new participants)", batch.size(), inserted);
+        });
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.TicketModel;
+import fr.bugbear.hermes.data.repository.TicketRepository;
+import fr.bugbear.hermes.data.repository.TicketRepository.ActiveTicket;
+import io.quarkus.arc.Arc;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.channel.concrete.ForumChannel;
+import net.dv8tion.jda.api.entities.channel.concrete.ThreadChannel;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Fixes the tickets that drifted from the Discord state while Hermes was down.
+ * <p>
+ * Run after READY, it compares the threads of every managed forum with the open tickets: tickets of deleted threads
+ * are marked deleted, tickets of locked threads are closed, and active threads without ticket get one. Forums are
+ * scanned in parallel, with a bounded number of forums at a time so that their REST calls don't flood the rate
+ * limits, and ticket updates are written in one batch at the end.
+ */
+@ApplicationScoped
+public class ReconciliationService implements Logged {
+
+    @Inject TicketRepository ticketRepository;
+    @Inject TicketService ticketService;
+    @Inject TicketIndex ticketIndex;
+    @Inject ForumService forumService;
+    @Inject MemberCacheService memberCacheService;
+    @Inject WebhookService webhookService;
+
+    @ConfigProperty(name = "reconciliation.enabled", defaultValue = "true") boolean enabled;
+    @ConfigProperty(name = "reconciliation.max-parallelism", defaultValue = "4") Integer maxParallelism;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * Outcome of the scan of a forum
+     */
+    private record ForumReport(List<ActiveTicket> deleted, List<ActiveTicket> closed, int created) {
+    }
+
+    /**
+     * Start the reconciliation on a virtual thread, unless it is disabled or already running
+     *
+     * @param jda
+     *         the client, ready
+     */
+    public void reconcileAsync(JDA jda) {
+        if (!enabled || !running.compareAndSet(false, true))
+            return;
+        Thread.ofVirtual().name("hermes-reconciliation").start(() -> {
+            try {
+                reconcile(jda);
+            } catch (Exception e) {
+                logger().error("Reconciliation failed", e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void reconcile(JDA jda) {
+        val start = System.currentTimeMillis();
+        val ticketsByForum = QuarkusTransaction.requiringNew()
+                                               .call(() -> ticketRepository.findActiveTickets())
+                                               .stream()
+                                               .collect(Collectors.groupingBy(ActiveTicket::forumChannelId));
+
+        val reports = new ConcurrentLinkedQueue<ForumReport>();
+        val failures = new AtomicInteger();
+        val permits = new Semaphore(maxParallelism);
+        try (val executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (val forumChannelId : forumService.getForums().keySet()) {
+                val forum = jda.getForumChannelById(forumChannelId);
+                if (forum == null)
+                    continue;
+                val tickets = ticketsByForum.getOrDefault(forumChannelId, List.of());
+                executor.execute(() -> {
+                    permits.acquireUninterruptibly();
+                    val requestContext = Arc.container().requestContext();
+                    requestContext.activate();
+                    try {
+                        reports.add(scanForum(forum, tickets));
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        logger().error("Couldn't reconcile forum {}, its tickets are left unchanged", forum.getId(), e);
+                    } finally {
+                        requestContext.terminate();
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        val deleted = reports.stream().flatMap(report -> report.deleted().stream()).toList();
+        val closed = reports.stream().flatMap(report -> report.closed().stream()).toList();
+        val created = reports.stream().mapToInt(ForumReport::created).sum();
+        QuarkusTransaction.requiringNew().run(() -> {
+            ticketRepository.closeAll(deleted.stream().map(ActiveTicket::id).toList(), TicketModel.Status.DELETED);
+            ticketRepository.closeAll(closed.stream().map(ActiveTicket::id).toList(), TicketModel.Status.CLOSED);
+        });
+        deleted.forEach(ticket -> {
+            ticketIndex.remove(ticket.threadId());
+            memberCacheService.ticketDeactivated(ticket.createdBy());
+            webhookService.forget(ticket.id());
+        });
+        closed.forEach(ticket -> {
+            memberCacheService.ticketDeactivated(ticket.createdBy());
+            webhookService.forget(ticket.id());
+        });
+
+        logger().info("Reconciliation done in {} ms: {} forums scanned ({} failed), {} tickets created, "
+                      + "{} closed, {} marked deleted",
+                      System.currentTimeMillis() - start,
+                      reports.size(),
+                      failures.get(),
+                      created,
+                      closed.size(),
+                      deleted.size());
+    }
+
+    /**
+     * Compare the threads of a forum with its open tickets
+     *
+     * @param forum
+     *         the forum channel
+     * @param tickets
+     *         the open tickets of the forum
+     *
+     * @return the tickets to close or delete, and the number of tickets created
+     */
+    private ForumReport scanForum(ForumChannel forum, List<ActiveTicket> tickets) {
+        val ticketsByThread = new HashMap<Long, ActiveTicket>();
+        tickets.forEach(ticket -> ticketsByThread.put(ticket.threadId(), ticket));
+        val closed = new ArrayList<ActiveTicket>();
+        var created = 0;
+
+        // active threads are cached by JDA, no call needed
+        val activeThreads = forum.getThreadChannels();
+        for (val thread : activeThreads) {
+            val ticket = ticketsByThread.remove(thread.getIdLong());
+            if (ticket != null) {
+                if (thread.isLocked())
+                    closed.add(ticket);
+            } else if (isMissingTicket(thread)) {
+                ticketService.createTicket(thread);
+                created++;
+            }
+        }
+
+        // the remaining tickets are archived or deleted, page the archived threads until all of them are found
+        val unresolved = new HashSet<>(ticketsByThread.keySet());
+        if (!unresolved.isEmpty()) {
+            for (val thread : forum.retrieveArchivedPublicThreadChannels().cache(false)) {
+                if (unresolved.remove(thread.getIdLong()) && thread.isLocked())
+                    closed.add(ticketsByThread.get(thread.getIdLong()));
+                if (unresolved.isEmpty())
+                    break;
+            }
+        }
+        val deleted = unresolved.stream().map(ticketsByThread::get).toList();
+        return new ForumReport(deleted, closed, created);
+    }
+
+    private boolean isMissingTicket(ThreadChannel thread) {
+        return ticketIndex.isLoaded()
+               ? ticketIndex.findTicketId(thread.getIdLong()) == TicketIndex.NO_TICKET
+               : QuarkusTransaction.requiringNew().call(() -> ticketRepository.findByThread(thread).isEmpty());
+    }
+}
@@ -7,24 +7,29 @@ package fr.bugbear.hermes.domain.service;
 
 import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.data.repository.TicketRepository;
+import fr.bugbear.hermes.data.repository.TicketRepository.ReminderTicket;
+import fr.bugbear.hermes.domain.service.RestScheduler.Lane;
 import io.quarkus.scheduler.Scheduled;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
 import lombok.val;
 import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
 
 import java.awt.*;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class ReminderService implements Logged {
 
     @Inject WebhookService webhookService;
     @Inject TicketRepository ticketRepository;
+    @Inject RestScheduler restScheduler;
 
     static final List<String> GIFS = List.of("https://media1.tenor.com/m/qhjZGEW52PUAAAAC/error.gif",
                                              "https://media1.tenor.com/m/AjVIJpzQ1W4AAAAC/late-for-a-date-running.gif",
@@ -39,36 +44,98 @@ public class ReminderService implements Logged {
 
     public static final Short DAYS_BEFORE_REMINDER = 2;
 
+    /**
+     * Number of tickets read per query, so that memory doesn't grow with the number of open tickets
+     */
+    static final int PAGE_SIZE = 200;
+
     @Scheduled(cron = "{reminder.cron}", timeZone = "Europe/Paris", delay = 5, delayUnit = TimeUnit.SECONDS)
+    @Transactional
     public void remindOpenTickets() {
-        val tickets = ticketRepository.findOpenTickets();
         val now = ZonedDateTime.now();
-        tickets.stream()
-               .filter(t -> t.createdAt.plusDays(DAYS_BEFORE_REMINDER).isBefore(now))
-               .collect(Collectors.groupingBy(t -> t.forum))
-               .forEach((forum, ts) -> {
-                   logger().info("Sending reminder for forum {} with {} open tickets", forum.name, ts.size());
-                   val links = ts.stream()
-                                 .map(t -> "Ticket %d : https://discord.com/channels/%d/%d (created %d days ago)"
-                                         .formatted(t.id,
-                                                    t.guildId,
-                                                    t.threadId,
-                                                    t.createdAt.until(now, ChronoUnit.DAYS)))
-                                 .collect(Collectors.joining("\n"));
-
-                   val message = ("Bonjour, il reste des tickets ouvert (toujours pas pris en charge) dans le forum %s"
-                                  + " depuis plus de %d jours: \n%s")
-                           .formatted(forum.name, DAYS_BEFORE_REMINDER, links);
-
-                   val embed = new EmbedBuilder()
-                           .setTitle("Tickets ouverts depuis un moment")
-                           .setDescription(message)
-                           .setColor(Color.ORANGE)
-                           .addField("Forum", forum.name, false)
-                           .setImage(getGif())
-                           .setFooter("%d c'est toujours moins que %d".formatted(ts.size(), ts.size() + 1))
-                           .build();
-                   webhookService.sendEmbed(forum, embed).queue();
-               });
+        val createdBefore = now.minusDays(DAYS_BEFORE_REMINDER);
+        val counts = ticketRepository.countOpenTicketsByForum(createdBefore);
+        if (counts.isEmpty())
+            return;
+
+        // tickets are ordered by forum, so a forum reminder is complete once a ticket of another forum is read
+        ForumReminder reminder = null;
+        List<ReminderTicket> tickets;
+        ReminderTicket last = null;
+        do {
+            tickets = ticketRepository.findOpenTicketsCreatedBefore(createdBefore, last, PAGE_SIZE);
+            if (!tickets.isEmpty())
+                last = tickets.getLast();
+            for (val ticket : tickets) {
+                if (reminder == null || !reminder.forumId.equals(ticket.forumId())) {
+                    if (reminder != null)
+                        reminder.send();
+                    reminder = new ForumReminder(ticket, counts.getOrDefault(ticket.forumId(), 0L));
+                }
+                reminder.add("Ticket %d : https://discord.com/channels/%d/%d (created %d days ago)"
+                                     .formatted(ticket.id(),
+                                                ticket.guildId(),
+                                                ticket.threadId(),
+                                                ticket.createdAt().until(now, ChronoUnit.DAYS)));
+            }
+        } while (tickets.size() == PAGE_SIZE);
+        if (reminder != null)
+            reminder.send();
+    }
+
+    /**
+     * Reminder of the open tickets of a forum, split over several embeds when the list is longer than an embed
+     * description
+     */
+    private class ForumReminder {
+        private final UUID forumId;
+        private final String forumName;
+        private final Long webhookChannelId;
+        private final long count;
+        private final String header;
+        private final StringBuilder links = new StringBuilder();
+        private int part = 0;
+
+        private ForumReminder(ReminderTicket ticket, long count) {
+            this.forumId = ticket.forumId();
+            this.forumName = ticket.forumName();
+            this.webhookChannelId = ticket.webhookChannelId();
+            this.count = count;
+            this.header = ("Bonjour, il reste des tickets ouvert (toujours pas pris en charge) dans le forum %s"
+                           + " depuis plus de %d jours: \n").formatted(forumName, DAYS_BEFORE_REMINDER);
+            logger().info("Sending reminder for forum {} with {} open tickets", forumName, count);
+        }
+
+        private void add(String link) {
+            if (header.length() + links.length() + link.length() + 1 > MessageEmbed.DESCRIPTION_MAX_LENGTH)
+                sendPart();
+            if (!links.isEmpty())
+                links.append('\n');
+            links.append(link);
+        }
+
+        private void send() {
+            if (!links.isEmpty())
+                sendPart();
+        }
+
+        private void sendPart() {
+            part++;
+            val embed = new EmbedBuilder()
+                    .setTitle(part == 1 ? "Tickets ouverts depuis un moment"
+                                        : "Tickets ouverts depuis un moment (suite %d)".formatted(part))
+                    .setDescription(header + links)
+                    .setColor(Color.ORANGE)
+                    .addField("Forum", forumName, false)
+                    .setImage(part == 1 ? getGif() : null)
+                    .setFooter("%d c'est toujours moins que %d".formatted(count, count + 1))
+                    .build();
+            links.setLength(0);
+            if (webhookChannelId == null) {
+                logger().warn("Forum {} has no webhook channel, reminder not sent", forumName);
+                return;
+            }
+            restScheduler.run(Lane.LOG, () -> webhookService.sendEmbed(webhookChannelId, embed).queue());
+        }
     }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.presentation.bot.PriorityRateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.opentelemetry.api.trace.Tracer;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+import net.dv8tion.jda.api.requests.RestRateLimiter;
+import net.dv8tion.jda.api.requests.Route;
+import net.dv8tion.jda.api.requests.SequentialRestRateLimiter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Schedules the Discord REST calls by priority.
+ * <p>
+ * Calls are issued in a {@link Lane}, set for the thread issuing them with {@link #run(Lane, Runnable)}: JDA enqueues a
+ * request on the thread calling {@code queue()}, {@code submit()} or {@code complete()}, so every call made in the
+ * runnable gets the lane. Calls chained with {@code flatMap} are enqueued from the JDA callback threads, and get the
+ * default lane of their route like the calls made outside of any lane. The {@link PriorityRateLimiter} then sends
+ * them to the JDA rate limiter by lane, with a bounded number of requests in flight, so that a transcript replay
+ * doesn't delay an interaction, and keeps the requests of a bucket backing off in their lane until it resets.
+ */
+@ApplicationScoped
+public class RestScheduler implements Logged {
+
+    /**
+     * Priority of a REST call, highest first
+     */
+    public enum Lane {
+        /**
+         * Interaction acknowledgements and hook edits, never queued as Discord expects them within 3 seconds
+         */
+        INTERACTION,
+        /**
+         * Replies visible to the users, default lane of the calls
+         */
+        REPLY,
+        /**
+         * Log channel messages and webhook embed updates
+         */
+        LOG,
+        /**
+         * Transcript archiving
+         */
+        ARCHIVE
+    }
+
+    private static final ThreadLocal<Lane> CURRENT_LANE = new ThreadLocal<>();
+
+    @Inject MeterRegistry meterRegistry;
+    @Inject Tracer tracer;
+
+    @ConfigProperty(name = "discord.rest.max-in-flight", defaultValue = "8") Integer maxInFlight;
+
+    private final Map<Route, RouteStats> routeStats = new ConcurrentHashMap<>();
+    private volatile PriorityRateLimiter rateLimiter;
+
+    /**
+     * Requests of a route, since the start
+     *
+     * @param route
+     *         method and path of the route
+     * @param queued
+     *         requests waiting for their lane
+     * @param count
+     *         requests sent to the rate limiter
+     * @param totalWaitNanos
+     *         time spent waiting for their lane
+     * @param maxWaitNanos
+     *         longest wait
+     * @param succeeded
+     *         responses with a success status
+     * @param rateLimited
+     *         responses rate limited by Discord
+     * @param failed
+     *         responses with an error status, or without response
+     */
+    public record RouteStats(String route,
+                             AtomicInteger queued,
+                             LongAdder count,
+                             LongAdder totalWaitNanos,
+                             LongAccumulator maxWaitNanos,
+                             Counter succeeded,
+                             Counter rateLimited,
+                             Counter failed) {
+
+        public void record(long waitNanos) {
+            count.increment();
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulate(waitNanos);
+        }
+
+        /**
+         * @param status
+         *         the HTTP status of the response, -1 if there was none
+         */
+        public void recordResponse(int status) {
+            if (status == 429)
+                rateLimited.increment();
+            else if (status >= 200 && status < 400)
+                succeeded.increment();
+            else
+                failed.increment();
+        }
+
+        public double meanWaitMillis() {
+            long samples = count.sum();
+            return samples == 0 ? 0 : totalWaitNanos.sum() / (samples * 1_000_000.0);
+        }
+    }
+
+    private RouteStats register(Route route) {
+        val name = route.getMethod() + " " + route.getRoute();
+        val stats = new RouteStats(name,
+                                   new AtomicInteger(),
+                                   new LongAdder(),
+                                   new LongAdder(),
+                                   new LongAccumulator(Math::max, 0L),
+                                   outcome(name, "success"),
+                                   outcome(name, "rate_limited"),
+                                   outcome(name, "error"));
+        FunctionTimer.builder("hermes.rest.wait",
+                              stats,
+                              waiting -> waiting.count().sum(),
+                              waiting -> waiting.totalWaitNanos().sum(),
+                              TimeUnit.NANOSECONDS)
+                     .description("Time spent by the requests waiting for their lane")
+                     .tag("route", name)
+                     .register(meterRegistry);
+        Gauge.builder("hermes.rest.queued", stats.queued(), AtomicInteger::get)
+             .description("Requests waiting for their lane")
+             .tag("route", name)
+             .register(meterRegistry);
+        return stats;
+    }
+
+    private Counter outcome(String route, String outcome) {
+        return Counter.builder("hermes.rest.requests")
+                      .description("Requests executed, by outcome")
+                      .tag("route", route)
+                      .tag("outcome", outcome)
+                      .register(meterRegistry);
+    }
+
+    /**
+     * Issue REST calls in a lane
+     *
+     * @param lane
+     *         the lane of the calls
+     * @param calls
+     *         issues the calls, on the current thread
+     */
+    public void run(Lane lane, Runnable calls) {
+        call(lane, () -> {
+            calls.run();
+            return null;
+        });
+    }
+
+    /**
+     * Issue REST calls in a lane
+     *
+     * @param lane
+     *         the lane of the calls
+     * @param calls
+     *         issues the calls, on the current thread
+     *
+     * @return the result of the calls
+     */
+    public <T> T call(Lane lane, Supplier<T> calls) {
+        val previous = CURRENT_LANE.get();
+        CURRENT_LANE.set(lane);
+        try {
+            return calls.get();
+        } finally {
+            if (previous == null)
+                CURRENT_LANE.remove();
+            else
+                CURRENT_LANE.set(previous);
+        }
+    }
+
+    /**
+     * @return the lane of the calls issued by the current thread, null if none was set
+     */
+    public Lane currentLane() {
+        return CURRENT_LANE.get();
+    }
+
+    /**
+     * Create the rate limiter of the client, used as {@link net.dv8tion.jda.api.requests.RestConfig} factory
+     *
+     * @param config
+     *         the configuration given by JDA
+     *
+     * @return the JDA rate limiter, behind the lanes
+     */
+    public RestRateLimiter rateLimiter(RestRateLimiter.RateLimitConfig config) {
+        val created = new PriorityRateLimiter(new SequentialRestRateLimiter(config), this, tracer, maxInFlight);
+        rateLimiter = created;
+        for (val lane : Lane.values())
+            Gauge.builder("hermes.rest.lane.queued", created, limiter -> limiter.getQueuedByLane().get(lane))
+                 .description("Requests waiting in a lane")
+                 .tag("lane", lane.name())
+                 .register(meterRegistry);
+        Gauge.builder("hermes.rest.in-flight", created, PriorityRateLimiter::getInFlight)
+             .description("Requests handed to the JDA rate limiter and not executed yet")
+             .register(meterRegistry);
+        Gauge.builder("hermes.rest.buckets.backing-off", created, PriorityRateLimiter::getBackingOff)
+             .description("Buckets without request left until they reset")
+             .register(meterRegistry);
+        return created;
+    }
+
+    public RouteStats stats(Route route) {
+        return routeStats.computeIfAbsent(route, this::register);
+    }
+
+    public Map<Route, RouteStats> getRouteStats() {
+        return Map.copyOf(routeStats);
+    }
+
+    @Scheduled(every = "{discord.rest.stats-interval}")
+    void logStats() {
+        val current = rateLimiter;
+        if (current == null || routeStats.isEmpty())
+            return;
+        current.pruneBuckets();
+        logger().info("REST lanes: {} queued by lane, {} in flight, {} buckets backing off",
+                      current.getQueuedByLane(),
+                      current.getInFlight(),
+                      current.getBackingOff());
+        routeStats.values()
+                  .stream()
+                  .sorted(Comparator.comparingDouble(RouteStats::meanWaitMillis).reversed())
+                  .limit(5)
+                  .forEach(stats -> logger().info("REST route {}: {} requests, {} queued, mean wait {} ms, max {} ms",
+                                                  stats.route(),
+                                                  stats.count().sum(),
+                                                  stats.queued().get(),
+                                                  "%.1f".formatted(stats.meanWaitMillis()),
+                                                  TimeUnit.NANOSECONDS.toMillis(stats.maxWaitNanos().get())));
+        current.getBuckets()
+               .stream()
+               .filter(bucket -> bucket.rateLimited() > 0 || bucket.remaining() == 0)
+               .sorted(Comparator.comparingLong(PriorityRateLimiter.BucketInfo::rateLimited).reversed())
+               .limit(5)
+               .forEach(bucket -> logger().info("REST bucket {} ({}): {} rate limited, {} remaining, reset in {} ms,"
+                                                + " {} pending",
+                                                bucket.bucket(),
+                                                bucket.route(),
+                                                bucket.rateLimited(),
+                                                bucket.remaining(),
+                                                bucket.resetAfterMillis(),
+                                                bucket.pending()));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.repository.TicketRepository;
+import fr.bugbear.hermes.utils.LongLongHashMap;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import lombok.val;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory index of the threads that have a ticket, from thread ID to ticket ID.
+ * <p>
+ * Loaded at startup from the {@code ticket} table and kept up to date when tickets are created or deleted, so that
+ * events on threads Hermes doesn't manage are dropped without any query.
+ */
+@ApplicationScoped
+public class TicketIndex implements Logged {
+
+    /**
+     * Returned by {@link #findTicketId(long)} when the thread has no ticket
+     */
+    public static final long NO_TICKET = -1L;
+
+    @Inject TicketRepository ticketRepository;
+
+    private final LongLongHashMap ticketsByThread = new LongLongHashMap(1024);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Until the index is loaded, callers must fall back to the database
+     */
+    private volatile boolean loaded = false;
+
+    void onStart(@Observes StartupEvent event) {
+        load();
+    }
+
+    @Transactional
+    void load() {
+        val start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try (val rows = ticketRepository.streamLiveThreadIds()) {
+            ticketsByThread.clear();
+            rows.forEach(row -> ticketsByThread.put((Long) row[0], (Long) row[1]));
+            loaded = true;
+            logger().info("Ticket index loaded with {} threads in {} ms (~{} KiB)",
+                          ticketsByThread.size(),
+                          System.currentTimeMillis() - start,
+                          ticketsByThread.memoryFootprint() / 1024);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Get the ticket of a thread
+     *
+     * @param threadId
+     *         the thread ID
+     *
+     * @return the ticket ID, or {@link #NO_TICKET} if the thread has no ticket
+     */
+    public long findTicketId(long threadId) {
+        long ticketId;
+        lock.readLock().lock();
+        try {
+            ticketId = ticketsByThread.get(threadId, NO_TICKET);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (ticketId == NO_TICKET)
+            misses.increment();
+        else
+            hits.increment();
+        return ticketId;
+    }
+
+    public void add(long threadId, long ticketId) {
+        lock.writeLock().lock();
+        try {
+            ticketsByThread.put(threadId, ticketId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long threadId) {
+        lock.writeLock().lock();
+        try {
+            ticketsByThread.remove(threadId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ticketsByThread.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return approximate size of the index, in bytes
+     */
+    public long memoryFootprint() {
+        lock.readLock().lock();
+        try {
+            return ticketsByThread.memoryFootprint();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -6,19 +6,28 @@
 package fr.bugbear.hermes.domain.service;
 
 import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.ForumModel;
 import fr.bugbear.hermes.data.model.TicketModel;
-import fr.bugbear.hermes.data.model.TicketParticipantModel;
+import fr.bugbear.hermes.data.model.TranscriptModel;
 import fr.bugbear.hermes.data.repository.ForumRepository;
-import fr.bugbear.hermes.data.repository.TicketParticipantRepository;
 import fr.bugbear.hermes.data.repository.TicketRepository;
 import fr.bugbear.hermes.domain.entity.CloseType;
+import fr.bugbear.hermes.domain.entity.ForumSnapshot;
+import fr.bugbear.hermes.domain.entity.PracticalTagWindow;
+import fr.bugbear.hermes.utils.ComponentId;
+import fr.bugbear.hermes.utils.Tracing;
+import io.opentelemetry.instrumentation.annotations.WithSpan;
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
 import jakarta.transaction.Transactional;
 import lombok.val;
 import net.dv8tion.jda.api.entities.ISnowflake;
 import net.dv8tion.jda.api.entities.Member;
-import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.UserSnowflake;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
 import net.dv8tion.jda.api.entities.channel.concrete.ThreadChannel;
 import net.dv8tion.jda.api.entities.channel.forums.BaseForumTag;
@@ -39,13 +48,17 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static fr.bugbear.hermes.domain.entity.ButtonEventType.REOPEN_TICKET;
-import static fr.bugbear.hermes.utils.DiscordUtils.copyMessagesToLogChannelThenDelete;
-import static fr.bugbear.hermes.utils.DiscordUtils.extractID;
-import static fr.bugbear.hermes.utils.DiscordUtils.getAllMessages;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CLOSE_OWNER;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CLOSE_TOTAL;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CLOSE_UPDATE;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CREATE_PERSIST;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CREATE_THREAD;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CREATE_TOTAL;
+import static fr.bugbear.hermes.domain.service.LifecycleMetrics.Step.CREATE_WEBHOOK;
 import static fr.bugbear.hermes.utils.DiscordUtils.getOptionAsEnum;
 import static fr.bugbear.hermes.utils.DiscordUtils.getOptionAsString;
 import static fr.bugbear.hermes.utils.DiscordUtils.isChannelForumThread;
@@ -59,10 +72,16 @@ import static net.dv8tion.jda.api.entities.channel.concrete.ForumChannel.MAX_POS
 public class TicketService implements Logged {
 
     @Inject TicketRepository ticketRepository;
-    @Inject TicketParticipantRepository ticketParticipantRepository;
+    @Inject ParticipationBuffer participationBuffer;
+    @Inject TicketIndex ticketIndex;
     @Inject ForumRepository forumRepository;
     @Inject ForumService forumService;
     @Inject WebhookService webhookService;
+    @Inject LifecycleMetrics lifecycleMetrics;
+    @Inject AuditLogService auditLogService;
+    @Inject MemberCacheService memberCacheService;
+    @Inject TranscriptService transcriptService;
+    @Inject TransactionSynchronizationRegistry transactionRegistry;
 
     private String getTicketName(Long ticketId, String ticketName) {
         // remove "[ID] - " from the name
@@ -77,12 +96,55 @@ public class TicketService implements Logged {
         return name;
     }
 
+    /**
+     * Run an action once the current transaction is committed, so that the in memory state never holds changes that
+     * were rolled back
+     *
+     * @param action
+     *         the action, updating the ticket index or the member cache
+     */
+    private void afterCommit(Runnable action) {
+        transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override public void beforeCompletion() {
+            }
+
+            @Override public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    action.run();
+            }
+        });
+    }
+
+    /**
+     * Find the ticket of a thread, using the ticket index to avoid querying threads that have no ticket, and add it
+     * to the current span
+     *
+     * @param threadChannel
+     *         the thread
+     *
+     * @return the ticket if the thread has one
+     */
+    private Optional<TicketModel> findTicket(ThreadChannel threadChannel) {
+        val ticket = findTicketModel(threadChannel);
+        ticket.ifPresent(Tracing::tagTicket);
+        return ticket;
+    }
+
+    private Optional<TicketModel> findTicketModel(ThreadChannel threadChannel) {
+        if (!ticketIndex.isLoaded())
+            return ticketRepository.findByThread(threadChannel);
+        val ticketId = ticketIndex.findTicketId(threadChannel.getIdLong());
+        if (ticketId == TicketIndex.NO_TICKET)
+            return Optional.empty();
+        return ticketRepository.findByIdOptional(ticketId);
+    }
+
     private void analyzeTags(ThreadChannel threadChannel, List<ForumTag> appliedTags) {
         val forumChannel = threadChannel.getParentChannel().asForumChannel();
         val traceTag = forumService.getTraceTag(forumChannel);
         if (traceTag.isPresent() && appliedTags.contains(traceTag.get())) {
-            var ticketOwner = threadChannel.retrieveThreadMemberById(threadChannel.getOwnerIdLong()).complete();
-            // send the message with a mention to the owner
+            // send the message with a mention to the owner, the mention doesn't need the member to be retrieved
+            val ticketOwner = UserSnowflake.fromId(threadChannel.getOwnerIdLong());
             threadChannel.sendMessageFormat(
                                  "Merci de préciser votre login et le tag de votre trace ci dessous./Please specify "
                                  + "your login and the tag of your trace below. %s", ticketOwner.getAsMention())
@@ -95,13 +157,13 @@ public class TicketService implements Logged {
         // add all tags to the thread if they are not already applied
         val currentTags = threadChannel.getAppliedTags();
         if (practicalTags.stream()
-                         .map(t -> t.tagId)
+                         .map(PracticalTagWindow::tagId)
                          .noneMatch(currentTags.stream()
                                                .map(ISnowflake::getIdLong)
                                                .collect(Collectors.toSet())::contains)) {
             val newTags = practicalTags.stream()
-                                       .filter(t -> currentTags.stream().noneMatch(c -> c.getIdLong() == t.tagId))
-                                       .map(t -> ForumTagSnowflake.fromId(t.tagId))
+                                       .filter(t -> currentTags.stream().noneMatch(c -> c.getIdLong() == t.tagId()))
+                                       .map(t -> ForumTagSnowflake.fromId(t.tagId()))
                                        .toList();
             logger().info("Adding practical tags to the thread {}", newTags);
             List<ForumTagSnowflake> tags = new ArrayList<>();
@@ -115,15 +177,60 @@ public class TicketService implements Logged {
 
     }
 
-    @Transactional
+    @WithSpan
     public void createTicket(ThreadChannel threadChannel) {
 
-        val forumModel = forumRepository.findByForumChannel(threadChannel.getParentChannel().asForumChannel());
-        if (forumModel.isEmpty()) { // ticket is not linked to a forum
+        val forumSnapshot = forumService.getForum(threadChannel.getParentChannel().asForumChannel());
+        if (forumSnapshot.isEmpty()) { // ticket is not linked to a forum
             return;
         }
-        val forum = forumModel.get();
-        logger().info("New ticket in forum {} channel {}", forum.name, threadChannel.getId());
+        val forumConfig = forumSnapshot.get();
+        logger().info("New ticket in forum {} channel {}", forumConfig.name(), threadChannel.getId());
+        val timer = lifecycleMetrics.start();
+
+        // the ticket is committed before any call to Discord
+        val ticket = QuarkusTransaction.requiringNew().call(() -> persistTicket(threadChannel, forumConfig));
+        ticketIndex.add(ticket.threadId, ticket.id);
+        memberCacheService.ticketActivated(ticket.createdBy);
+        Tracing.tagTicket(ticket);
+        timer.step(CREATE_PERSIST);
+
+        // independent Discord calls, all issued without waiting for each other
+        threadChannel.getManager()
+                     .setName(ticket.name)
+                     .setArchived(false)
+                     .setAutoArchiveDuration(ThreadChannel.AutoArchiveDuration.TIME_1_WEEK)
+                     .and(threadChannel.join())
+                     .queue(success -> timer.step(CREATE_THREAD),
+                            error -> logger().error("Couldn't update thread of ticket #{}", ticket.id, error));
+
+        // analyze tags
+        analyzeTags(threadChannel, threadChannel.getAppliedTags());
+
+        threadChannel.getGuild()
+                     .retrieveMemberById(threadChannel.getOwnerIdLong())
+                     // the owner may have left the guild, the embed is then sent without author
+                     .onErrorMap(error -> null)
+                     .flatMap(ticketOwner -> webhookService.sendEmbed(forumConfig.webhookChannelId(),
+                                                                      getTicketWebhookEmbed(ticket, ticketOwner))
+                                                           // add link button
+                                                           .addActionRow(Button.link(threadChannel.getJumpUrl(),
+                                                                                     "Go to")))
+                     .queue(hookMessage -> {
+                                timer.step(CREATE_WEBHOOK);
+                                QuarkusTransaction.requiringNew()
+                                                  .run(() -> ticketRepository.update(
+                                                          "webhookMessageUrl = ?1 where id = ?2",
+                                                          hookMessage.getJumpUrl(),
+                                                          ticket.id));
+                                webhookService.messageSent(ticket.id, hookMessage.getJumpUrl());
+                                timer.step(CREATE_TOTAL);
+                            },
+                            error -> logger().error("Couldn't send webhook message of ticket #{}", ticket.id, error));
+    }
+
+    private TicketModel persistTicket(ThreadChannel threadChannel, ForumSnapshot forumConfig) {
+        val forum = forumRepository.getEntityManager().getReference(ForumModel.class, forumConfig.id());
 
         // create a new ticket
         val ticket = new TicketModel()
@@ -140,29 +247,12 @@ public class TicketService implements Logged {
                                        .collect(Collectors.toSet()));
 
         ticketRepository.persist(ticket);
-        val ticketName = getTicketName(ticket.id, threadChannel.getName());
-        ticket.name = ticketName;
-        ticketRepository.persist(ticket); // update the ticket with the name (will trigger the update event, but it's
-        // ok)
-        val ticketOwner = threadChannel.retrieveThreadMemberById(threadChannel.getOwnerIdLong()).complete().getMember();
-        threadChannel.getManager()
-                     .setName(ticketName)
-                     .setArchived(false)
-                     .setAutoArchiveDuration(ThreadChannel.AutoArchiveDuration.TIME_1_WEEK)
-                     .and(threadChannel.join())
-                     .queue();
-
-        // analyze tags
-        analyzeTags(threadChannel, threadChannel.getAppliedTags());
-
-        val hookMessage = webhookService.sendEmbed(forum, getTicketWebhookEmbed(ticket, ticketOwner))
-                                        // add link button
-                                        .addActionRow(Button.link(threadChannel.getJumpUrl(), "Go to"))
-                                        .complete();
-        ticket.webhookMessageUrl = hookMessage.getJumpUrl();
-
+        // the name needs the generated ID (renaming the thread will trigger the update event, but it's ok)
+        ticket.name = getTicketName(ticket.id, threadChannel.getName());
+        return ticket;
     }
 
+    @WithSpan
     @Transactional
     public void renameTicket(SlashCommandInteractionEvent event) {
         val nameOption = requireNonNull(event.getOption("name")).getAsString();
@@ -180,7 +270,7 @@ public class TicketService implements Logged {
         event.deferReply().setEphemeral(true).queue();
 
         // rename the ticket
-        val ticket = ticketRepository.findByThread(threadChannel).orElseThrow();
+        val ticket = findTicket(threadChannel).orElseThrow();
         if (forumService.isNotManager(event.getMember(), threadChannel.getParentChannel().asForumChannel())) {
             logger().error("User is not a manager of the forum");
             event.reply("You are not allowed to rename the ticket").setEphemeral(true).queue();
@@ -199,9 +289,10 @@ public class TicketService implements Logged {
              .setEphemeral(true)
              .queue();
 
-        webhookService.editEmbed(ticket, getTicketWebhookEmbed(ticket, threadChannel.getOwner())).queue();
+        webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, threadChannel.getOwner()));
     }
 
+    @WithSpan
     @Transactional
     public void closeTicket(SlashCommandInteractionEvent event) {
         val typeOption = getOptionAsEnum(event, "type", CloseType.class).orElse(CloseType.RESOLVE);
@@ -222,7 +313,7 @@ public class TicketService implements Logged {
 
         val threadChannel = event.getChannel().asThreadChannel();
         val forumChannel = threadChannel.getParentChannel().asForumChannel();
-        val ticket = ticketRepository.findByThread(threadChannel).orElseThrow();
+        val ticket = findTicket(threadChannel).orElseThrow();
         val webhookChannel = requireNonNull(threadChannel.getJDA()
                                                          .getTextChannelById(ticket.forum.webhookChannelId));
         val managerConfig = forumService.getManagerConfig(member, forumChannel);
@@ -242,12 +333,18 @@ public class TicketService implements Logged {
                       ticket.id,
                       typeOption,
                       reasonOption.isEmpty() ? "\"No reason\"" : reasonOption);
-        event.getHook().editOriginal("Ticket closed").complete();
+        val timer = lifecycleMetrics.start();
+        event.getHook().editOriginal("Ticket closed").queue();
+        val transcript = new TranscriptModel().withTicketId(ticket.id)
+                                              .withGuildId(ticket.guildId)
+                                              .withChannelId(ticket.threadId)
+                                              .withName(threadChannel.getName())
+                                              .withClosedAt(ZonedDateTime.now());
         if (typeOption == CloseType.DELETE) {
             // copy all the messages to the webhook channel and delete the ticket
-            copyMessagesToLogChannelThenDelete(getAllMessages(threadChannel), webhookChannel, threadChannel.getName(),
-                                               threadChannel);
+            transcriptService.archiveThenDelete(threadChannel, webhookChannel, threadChannel.getName(), transcript);
         } else {
+            transcriptService.store(threadChannel, transcript);
             // archive the ticket
 
             threadChannel.sendMessageEmbeds(getCloseTicketMessage(typeOption,
@@ -258,34 +355,59 @@ public class TicketService implements Logged {
             threadChannel.getManager().setArchived(true).setLocked(true).reason("Ticket closed").queue();
         }
 
-        // close the ticket
+        // close the ticket, committed when this method returns, without waiting for the calls below
         ticket.status = typeOption.toStatus();
+        val threadId = ticket.threadId;
+        val ownerId = ticket.createdBy;
+        afterCommit(() -> {
+            if (typeOption == CloseType.DELETE)
+                ticketIndex.remove(threadId);
+            memberCacheService.ticketDeactivated(ownerId);
+        });
         ticket.closedAt = ZonedDateTime.now();
         ticket.updatedAt = ZonedDateTime.now();
 
         // send message to user that ticket is closed
-        val ticketOwner = requireNonNull(threadChannel.getGuild().retrieveMemberById(threadChannel.getOwnerIdLong())
-                                                      .complete());
-        ticketOwner.getUser().openPrivateChannel().queue(channel -> {
+        threadChannel.getGuild().retrieveMemberById(threadChannel.getOwnerIdLong()).queue(ticketOwner -> {
+            timer.step(CLOSE_OWNER);
+            webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, ticketOwner));
             val actionRow = new ArrayList<ItemComponent>() {{
                 add(Button.link(threadChannel.getJumpUrl(), "Go to"));
                 if (typeOption == CloseType.RESOLVE)
-                    add(Button.primary("%s-%d".formatted(REOPEN_TICKET, ticket.id), "Reopen")
+                    add(Button.primary(ComponentId.encode(REOPEN_TICKET,
+                                                                    ticket.id,
+                                                                    threadChannel.getIdLong()), "Reopen")
                               .withEmoji(Emoji.fromFormatted("U+1F513"))); // represented by a unlock emoji
             }};
-            channel.sendMessageEmbeds(getPrivateCloseTicketMessage(ticket, threadChannel,
-                                                                   typeOption,
-                                                                   member,
-                                                                   reasonOption))
-                   .addActionRow(actionRow)
-                   .queue();
-        }, error -> logger().error("Couldn't send message to user {}", threadChannel.getOwnerIdLong(), error));
-        webhookService.editEmbed(ticket, getTicketWebhookEmbed(ticket, ticketOwner)).queue();
+            ticketOwner.getUser()
+                       .openPrivateChannel()
+                       .flatMap(channel -> channel.sendMessageEmbeds(getPrivateCloseTicketMessage(ticket,
+                                                                                                  threadChannel,
+                                                                                                  typeOption,
+                                                                                                  member,
+                                                                                                  reasonOption))
+                                                  .addActionRow(actionRow))
+                       .queue(message -> timer.step(CLOSE_TOTAL),
+                              error -> logger().error("Couldn't send message to user {}",
+                                                      threadChannel.getOwnerIdLong(),
+                                                      error));
+        }, error -> {
+            logger().error("Couldn't retrieve owner {} of ticket #{}",
+                           threadChannel.getOwnerIdLong(),
+                           ticket.id,
+                           error);
+            webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, null));
+        });
+        timer.step(CLOSE_UPDATE);
     }
 
+    @WithSpan
     @Transactional
     public void registerParticipation(ThreadChannel threadChannel, Member member) {
-        val ticketModel = ticketRepository.findByThread(threadChannel);
+        // checked in memory first, most messages are not sent by managers
+        if (forumService.isNotManager(member, threadChannel.getParentChannel().asForumChannel()))
+            return;
+        val ticketModel = findTicket(threadChannel);
         if (ticketModel.isEmpty())  // the thread is not related to a ticket
             return;
         val ticket = ticketModel.get();
@@ -295,36 +417,26 @@ public class TicketService implements Logged {
             return;
         }
 
-        if (forumService.isNotManager(member, threadChannel.getParentChannel().asForumChannel())) {
-            return;
-        }
         logger().info("Registering participation of {} in ticket #{}", member.getId(), ticket.id);
         val now = ZonedDateTime.now();
         if (ticket.takenAt == null) {
+            // the ticket is taken right away, only the participant rows are written behind
             ticket.takenAt = now;
             ticket.status = TicketModel.Status.IN_PROGRESS;
-            webhookService.editEmbed(ticket, getTicketWebhookEmbed(ticket, ticketOwner)).queue();
-        }
-        if (ticket.participants.stream().noneMatch(p -> p.userId == member.getIdLong())) {
-            val participant = new TicketParticipantModel()
-                    .withId(UUID.randomUUID())
-                    .withUserId(member.getIdLong())
-                    .withTakenAt(now)
-                    .withTicket(ticket);
-
-            ticketParticipantRepository.persist(participant);
-
+            ticket.updatedAt = now;
+            webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, ticketOwner));
         }
-
-        ticket.updatedAt = now;
+        participationBuffer.register(ticket.id, member.getIdLong(), now);
     }
 
+    @WithSpan
     @Transactional
     public void reopenTicket(ButtonInteractionEvent event) {
         event.deferReply(true).queue();
-        val ticketId = extractID(REOPEN_TICKET, event.getComponentId()).orElseThrow();
+        val ticketId = ComponentId.decodeLong(REOPEN_TICKET, event.getComponentId()).orElseThrow();
         logger().info("Reopening ticket {}", ticketId);
         val ticket = ticketRepository.findByIdOptional(ticketId).orElseThrow();
+        Tracing.tagTicket(ticket);
         if (ticket.status != TicketModel.Status.CLOSED) {
             event.getHook().editOriginal("Ticket is not closed").queue();
             return;
@@ -346,6 +458,8 @@ public class TicketService implements Logged {
         threadChannel.getManager().setLocked(false).setArchived(false).queue();
         ticket.status = TicketModel.Status.IN_PROGRESS;
         ticket.reopenedTimes++;
+        val ownerId = ticket.createdBy;
+        afterCommit(() -> memberCacheService.ticketActivated(ownerId));
         ticket.updatedAt = ZonedDateTime.now();
         ticket.closedAt = null;
 
@@ -356,19 +470,31 @@ public class TicketService implements Logged {
         // remove the button from the message
         event.getMessage().editMessageComponents().queue();
 
-        webhookService.editEmbed(ticket, getTicketWebhookEmbed(ticket, author)).queue();
+        webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, author));
     }
 
+    @WithSpan
     @Transactional
     public void deleteTicket(ThreadChannel threadChannel) {
-        val ticketModel = ticketRepository.findByThread(threadChannel);
+        val ticketModel = findTicket(threadChannel);
         if (ticketModel.isEmpty())
             return;
         val ticket = ticketModel.get();
+        // the thread is gone, whatever the state of the ticket
+        val threadId = threadChannel.getIdLong();
+        val ticketId = ticket.id;
+        afterCommit(() -> {
+            ticketIndex.remove(threadId);
+            webhookService.forget(ticketId);
+        });
         // if the ticket is already closed, we don't need to execute the event again
         if (ticket.status == TicketModel.Status.CLOSED)
             return;
         logger().info("Ticket channel has been deleted, closing ticket #{}", ticket.id);
+        if (ticket.status != TicketModel.Status.DELETED) {
+            val ownerId = ticket.createdBy;
+            afterCommit(() -> memberCacheService.ticketDeactivated(ownerId));
+        }
         val now = ZonedDateTime.now();
         ticket.status = TicketModel.Status.DELETED;
         ticket.closedAt = now;
@@ -396,9 +522,10 @@ public class TicketService implements Logged {
              .queue();
     }
 
+    @WithSpan
     public void onTicketRename(ChannelUpdateNameEvent event) {
         val threadChannel = event.getChannel().asThreadChannel();
-        val ticketModel = ticketRepository.findByThread(threadChannel);
+        val ticketModel = findTicket(threadChannel);
         if (ticketModel.isEmpty())
             return;
         val ticket = ticketModel.get();
@@ -408,15 +535,15 @@ public class TicketService implements Logged {
             val newTicketName = getTicketName(ticket.id, threadChannel.getName());
             ticket.name = newTicketName;
             threadChannel.getManager().setName(newTicketName).queue();
-            webhookService.editEmbed(ticket, getTicketWebhookEmbed(ticket, threadChannel.getOwner()))
-                          .queue();
+            webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, threadChannel.getOwner()));
         }
     }
 
+    @WithSpan
     @Transactional
     public void onTagsChange(ChannelUpdateAppliedTagsEvent event) {
         val threadChannel = event.getChannel().asThreadChannel();
-        val ticketModel = ticketRepository.findByThread(threadChannel);
+        val ticketModel = findTicket(threadChannel);
         if (ticketModel.isEmpty())
             return;
         val ticket = ticketModel.get();
@@ -427,28 +554,38 @@ public class TicketService implements Logged {
 
         // TODO: check for practical tags
         val threadOwner = event.getGuild().retrieveMemberById(threadChannel.getOwnerIdLong()).complete();
-        webhookService.editEmbed(ticket, getTicketWebhookEmbed(ticket, threadOwner)).queue();
+        webhookService.updateEmbed(ticket, getTicketWebhookEmbed(ticket, threadOwner));
     }
 
-    public void onTicketArchivedOrLocked(ThreadChannel threadChannel, User user) {
-        // check if the event author is the bot itself
-        if (user.getIdLong() == threadChannel.getJDA().getSelfUser().getIdLong())
+    @WithSpan
+    public void onTicketArchivedOrLocked(ThreadChannel threadChannel) {
+        // unarchiving or unlocking the thread is fine, and is what the bot does itself
+        if (!threadChannel.isArchived() && !threadChannel.isLocked())
             return;
 
-        if (ticketRepository.findByThread(threadChannel).isEmpty())
+        if (findTicket(threadChannel).isEmpty())
             return;
 
-        val member = threadChannel.getGuild().retrieveMember(user).complete();
-        if (forumService.isManager(member, threadChannel.getParentChannel().asForumChannel()))
+        // get the user who archived the ticket
+        val user = auditLogService.findThreadUpdater(threadChannel.getGuild(),
+                                                     threadChannel.getIdLong(),
+                                                     threadChannel.getTimeArchiveInfoLastModified());
+        if (user.isEmpty()) {
+            logger().warn("No user found for the thread update event : {}", threadChannel.getIdLong());
             return;
-        logger().info("User {} tried to archive or lock the ticket thread #{}", user.getId(), threadChannel.getId());
-        if (threadChannel.isArchived() || threadChannel.isLocked()) {
-            threadChannel.getManager().setLocked(false).setArchived(false).queue();
-            threadChannel.sendMessage(
-                                 "Please don't archive or lock the ticket thread manually. It will be done "
-                                 + "automatically when the ticket is closed.")
-                         .queue();
         }
+        // check if the event author is the bot itself
+        if (user.get().getIdLong() == threadChannel.getJDA().getSelfUser().getIdLong())
+            return;
 
+        val member = threadChannel.getGuild().retrieveMember(user.get()).complete();
+        if (forumService.isManager(member, threadChannel.getParentChannel().asForumChannel()))
+            return;
+        logger().info("User {} tried to archive or lock the ticket thread #{}", user.get().getId(), threadChannel.getId());
+        threadChannel.getManager().setLocked(false).setArchived(false).queue();
+        threadChannel.sendMessage(
+                             "Please don't archive or lock the ticket thread manually. It will be done "
+                             + "automatically when the ticket is closed.")
+                     .queue();
     }
 }
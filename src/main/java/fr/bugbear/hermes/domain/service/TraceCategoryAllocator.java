@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.ManagerModel;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.val;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.channel.concrete.Category;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static net.dv8tion.jda.api.Permission.MANAGE_CHANNEL;
+import static net.dv8tion.jda.api.Permission.MANAGE_THREADS;
+import static net.dv8tion.jda.api.Permission.MESSAGE_HISTORY;
+import static net.dv8tion.jda.api.Permission.MESSAGE_SEND;
+import static net.dv8tion.jda.api.Permission.VIEW_CHANNEL;
+
+/**
+ * Allocates the categories in which the trace ticket channels are created.
+ * <p>
+ * A category holds at most {@value #MAX_CATEGORY_CHANNELS} channels. Each request reserves a slot in a category
+ * before creating its channel, and releases it once the channel is created or its creation failed: the free slots of
+ * a category are its free places in the JDA cache minus the pending reservations, so concurrent requests never pick
+ * the same last slot, and deleted channels free their slot as soon as the cache sees them. At most one category is
+ * created at a time per guild, and the next one is created ahead once the free slots run low.
+ */
+@ApplicationScoped
+public class TraceCategoryAllocator implements Logged {
+
+    /**
+     * Maximum number of channels that can be created in a category
+     */
+    public static final int MAX_CATEGORY_CHANNELS = 50;
+
+    @ConfigProperty(name = "discord.trace.ticket.category.name") String categoryName;
+    @ConfigProperty(name = "discord.trace.ticket.category.low-watermark", defaultValue = "10") Integer lowWatermark;
+
+    /**
+     * Permissions for managers
+     */
+    private static final List<Permission> MANAGER_PERMISSIONS = List.of(VIEW_CHANNEL,
+                                                                        MESSAGE_SEND,
+                                                                        MESSAGE_HISTORY,
+                                                                        MANAGE_CHANNEL,
+                                                                        MANAGE_THREADS);
+
+    private final Map<Long, GuildCategories> guilds = new ConcurrentHashMap<>();
+
+    /**
+     * A slot reserved in a category, to release once the channel is created or its creation failed
+     */
+    public static final class Reservation {
+        private final GuildCategories owner;
+        private final Category category;
+        private boolean released = false;
+
+        private Reservation(GuildCategories owner, Category category) {
+            this.owner = owner;
+            this.category = category;
+        }
+
+        public Category category() {
+            return category;
+        }
+
+        public void release() {
+            synchronized (owner) {
+                if (released)
+                    return;
+                released = true;
+                owner.pending.computeIfPresent(category.getIdLong(), (id, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Trace categories of a guild. Guarded by its own monitor.
+     */
+    private final class GuildCategories {
+        /**
+         * Reservations not released yet, by category ID
+         */
+        private final Map<Long, Integer> pending = new HashMap<>();
+        private CompletableFuture<Category> creating;
+
+        private int freeSlots(Category category) {
+            val reserved = pending.getOrDefault(category.getIdLong(), 0);
+            return MAX_CATEGORY_CHANNELS - category.getChannels().size() - reserved;
+        }
+
+        private int freeSlots(Guild guild) {
+            return getCategories(guild).stream().mapToInt(this::freeSlots).sum();
+        }
+
+        private Reservation tryReserve(Guild guild) {
+            for (val category : getCategories(guild)) {
+                if (freeSlots(category) > 0) {
+                    pending.merge(category.getIdLong(), 1, Integer::sum);
+                    return new Reservation(this, category);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Start creating a category, unless one is already being created
+         *
+         * @return the creation in progress
+         */
+        private CompletableFuture<Category> startCreation(Guild guild, Consumer<Category> configure) {
+            if (creating != null && !creating.isDone())
+                return creating;
+            logger().info("Creating a new category {} for guild {}", categoryName, guild.getId());
+            val position = getCategories(guild).stream().mapToInt(Category::getPosition).max().orElse(0) + 1;
+            creating = guild.createCategory(categoryName)
+                            .setPosition(position)
+                            // make the category private
+                            .addPermissionOverride(guild.getPublicRole(), List.of(), List.of(VIEW_CHANNEL))
+                            .addPermissionOverride(guild.getBotRole(), List.of(VIEW_CHANNEL), List.of())
+                            .submit()
+                            .thenApply(category -> {
+                                configure.accept(category);
+                                return category;
+                            });
+            creating.whenComplete((category, error) -> {
+                if (error != null)
+                    logger().error("Couldn't create a category {} for guild {}", categoryName, guild.getId(), error);
+            });
+            return creating;
+        }
+    }
+
+    /**
+     * @param guild
+     *         the guild
+     *
+     * @return the trace categories of the guild
+     */
+    public List<Category> getCategories(Guild guild) {
+        return guild.getCategoriesByName(categoryName, true);
+    }
+
+    /**
+     * Prepare the permissions of managers, to apply to the categories created for them. The managers are read now, as
+     * the category may be created after the end of the transaction.
+     *
+     * @param guild
+     *         the guild
+     * @param managers
+     *         the managers of the trace configuration
+     *
+     * @return the function adding the manager permissions to a category
+     */
+    public Consumer<Category> managerOverrides(Guild guild, Collection<ManagerModel> managers) {
+        val roles = managers.stream().flatMap(manager -> manager.roles.stream()).toList();
+        val users = managers.stream().flatMap(manager -> manager.users.stream()).toList();
+        return category -> {
+            val categoryManager = category.getManager();
+            //noinspection ResultOfMethodCallIgnored
+            roles.stream()
+                 .filter(Objects::nonNull)
+                 .map(guild::getRoleById)
+                 .filter(Objects::nonNull)
+                 .forEach(r -> categoryManager.putRolePermissionOverride(r.getIdLong(),
+                                                                         MANAGER_PERMISSIONS,
+                                                                         List.of()));
+            //noinspection ResultOfMethodCallIgnored
+            users.stream()
+                 .filter(Objects::nonNull)
+                 .map(guild::getMemberById)
+                 .filter(Objects::nonNull)
+                 .forEach(u -> categoryManager.putMemberPermissionOverride(u.getIdLong(),
+                                                                           MANAGER_PERMISSIONS,
+                                                                           List.of()));
+            categoryManager.queue();
+        };
+    }
+
+    /**
+     * Reserve a slot for a new channel, creating a category if every category is full. Blocks while the category is
+     * created.
+     *
+     * @param guild
+     *         the guild
+     * @param configure
+     *         called with each category created, to add the permissions of the managers
+     *
+     * @return the reservation, to release once the channel is created
+     */
+    public Reservation reserve(Guild guild, Consumer<Category> configure) {
+        val state = guilds.computeIfAbsent(guild.getIdLong(), id -> new GuildCategories());
+        while (true) {
+            CompletableFuture<Category> creation;
+            synchronized (state) {
+                val reservation = state.tryReserve(guild);
+                if (reservation != null) {
+                    // create the next category ahead, while this one still has room
+                    if (state.freeSlots(guild) < lowWatermark)
+                        state.startCreation(guild, configure);
+                    return reservation;
+                }
+                creation = state.startCreation(guild, configure);
+            }
+            creation.join();
+        }
+    }
+}
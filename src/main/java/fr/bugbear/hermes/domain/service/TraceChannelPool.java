@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.repository.TraceConfigRepository;
+import fr.bugbear.hermes.domain.entity.TraceTagSnapshot;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static io.quarkus.scheduler.Scheduled.ConcurrentExecution.SKIP;
+
+/**
+ * Channels created ahead for the trace tickets, so that a submission only claims one instead of creating it.
+ * <p>
+ * When the window of a trace configuration is about to open, channels are created in its categories, visible to the
+ * managers only. A submission renames a channel and gives access to the student in one call. The size of each pool
+ * follows the rate of submissions, smoothed over the last minutes, and the channels left are deleted once the window
+ * closes.
+ */
+@ApplicationScoped
+public class TraceChannelPool implements Logged {
+
+    /**
+     * Name of the channels waiting to be claimed
+     */
+    public static final String POOL_CHANNEL_NAME = "trace-available";
+
+    /**
+     * Start of the topic of the channels waiting to be claimed, followed by the ID of their trace configuration.
+     * <p>
+     * The name alone doesn't identify them, as a student whose login is {@code available} gets the same one. The topic
+     * can't be edited by students and is cleared when a channel is claimed.
+     */
+    public static final String POOL_TOPIC_PREFIX = "hermes-pool:";
+
+    /**
+     * Minutes of submissions, at the observed rate, that the pool should absorb between two refills
+     */
+    private static final int REFILL_MINUTES = 2;
+
+    @Inject TraceTagIndex traceTagIndex;
+    @Inject TraceCategoryAllocator traceCategoryAllocator;
+    @Inject TraceConfigRepository traceConfigRepository;
+
+    @ConfigProperty(name = "trace.warm-pool.enabled", defaultValue = "false") boolean enabled;
+    @ConfigProperty(name = "trace.warm-pool.lead-time", defaultValue = "10m") Duration leadTime;
+    @ConfigProperty(name = "trace.warm-pool.min-size", defaultValue = "5") Integer minSize;
+    @ConfigProperty(name = "trace.warm-pool.max-size", defaultValue = "25") Integer maxSize;
+    @ConfigProperty(name = "trace.warm-pool.rate-smoothing", defaultValue = "0.3") Double rateSmoothing;
+
+    private volatile JDA jda;
+
+    private final Map<UUID, TagPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Channels created for a trace configuration
+     */
+    private static final class TagPool {
+        private final long guildId;
+        private final ConcurrentLinkedQueue<Long> channels = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger claims = new AtomicInteger();
+        /**
+         * Claims per minute, exponentially smoothed. Only updated by the maintenance.
+         */
+        private double rate = 0;
+
+        private TagPool(long guildId) {
+            this.guildId = guildId;
+        }
+    }
+
+    /**
+     * Start maintaining the pools, once the client is ready. Channels left unclaimed by a previous run are deleted, as
+     * they are not tracked anymore.
+     *
+     * @param jda
+     *         the client, ready
+     */
+    public void start(JDA jda) {
+        if (!enabled)
+            return;
+        Thread.ofVirtual().name("hermes-trace-pool-cleanup").start(() -> {
+            for (val guild : jda.getGuilds())
+                for (val category : traceCategoryAllocator.getCategories(guild))
+                    category.getTextChannels()
+                            .stream()
+                            .filter(TraceChannelPool::isPoolChannel)
+                            .forEach(channel -> {
+                                logger().info("Deleting trace channel {} left unclaimed by a previous run",
+                                              channel.getId());
+                                channel.delete().queue();
+                            });
+            this.jda = jda;
+        });
+    }
+
+    /**
+     * Check if a channel was created for a pool and never claimed, from its topic
+     *
+     * @param channel
+     *         a channel of a trace category
+     *
+     * @return true if the channel is waiting to be claimed
+     */
+    static boolean isPoolChannel(TextChannel channel) {
+        val topic = channel.getTopic();
+        if (topic == null || !topic.startsWith(POOL_TOPIC_PREFIX))
+            return false;
+        try {
+            UUID.fromString(topic.substring(POOL_TOPIC_PREFIX.length()));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Take a channel of the pool of a trace configuration
+     *
+     * @param tagId
+     *         the trace configuration
+     *
+     * @return a channel to rename, open to the student and clear the topic of, empty if the pool is disabled or empty
+     */
+    public Optional<TextChannel> claim(UUID tagId) {
+        val current = jda;
+        val pool = pools.get(tagId);
+        if (current == null || pool == null)
+            return Optional.empty();
+        pool.claims.incrementAndGet();
+        Long channelId;
+        while ((channelId = pool.channels.poll()) != null) {
+            val channel = current.getTextChannelById(channelId);
+            if (channel != null)
+                return Optional.of(channel);
+        }
+        logger().debug("Trace channel pool of {} is empty", tagId);
+        return Optional.empty();
+    }
+
+    @Scheduled(every = "1m", concurrentExecution = SKIP)
+    void maintain() {
+        val current = jda;
+        if (!enabled || current == null)
+            return;
+        val now = ZonedDateTime.now();
+        val tags = traceTagIndex.findOpenBetween(now, now.plus(leadTime))
+                                .stream()
+                                .collect(Collectors.toMap(TraceTagSnapshot::id, tag -> tag));
+
+        // the windows closed, delete their channels
+        pools.entrySet().removeIf(entry -> {
+            if (tags.containsKey(entry.getKey()))
+                return false;
+            drain(current, entry.getKey(), entry.getValue());
+            return true;
+        });
+
+        for (val tag : tags.values()) {
+            val guild = current.getGuildById(tag.guildId());
+            if (guild == null)
+                continue;
+            val pool = pools.computeIfAbsent(tag.id(), id -> new TagPool(tag.guildId()));
+            pool.rate = rateSmoothing * pool.claims.getAndSet(0) + (1 - rateSmoothing) * pool.rate;
+            val target = Math.clamp((long) Math.ceil(pool.rate * REFILL_MINUTES), minSize, maxSize);
+            val missing = target - pool.channels.size();
+            if (missing > 0)
+                fill(guild, tag, pool, missing);
+        }
+    }
+
+    private void fill(Guild guild, TraceTagSnapshot tag, TagPool pool, int missing) {
+        try {
+            val configure = QuarkusTransaction.requiringNew().call(() -> {
+                val traceConfig = traceConfigRepository.findByIdOptional(tag.id()).orElseThrow();
+                return traceCategoryAllocator.managerOverrides(guild, traceConfig.managers);
+            });
+            for (int i = 0; i < missing; i++) {
+                val reservation = traceCategoryAllocator.reserve(guild, configure);
+                try {
+                    val channel = reservation.category()
+                                             .createTextChannel(POOL_CHANNEL_NAME)
+                                             .setTopic(POOL_TOPIC_PREFIX + tag.id())
+                                             .complete();
+                    pool.channels.add(channel.getIdLong());
+                } finally {
+                    reservation.release();
+                }
+            }
+            logger().debug("Trace channel pool of {} filled ({} channels, {} claims/min)",
+                           tag.tag(),
+                           pool.channels.size(),
+                           pool.rate);
+        } catch (Exception e) {
+            logger().error("Couldn't fill the trace channel pool of {}", tag.tag(), e);
+        }
+    }
+
+    private void drain(JDA current, UUID tagId, TagPool pool) {
+        var deleted = 0;
+        Long channelId;
+        while ((channelId = pool.channels.poll()) != null) {
+            val channel = current.getTextChannelById(channelId);
+            if (channel != null) {
+                channel.delete().queue();
+                deleted++;
+            }
+        }
+        logger().info("Trace channel pool of {} closed in guild {}, {} channels deleted", tagId, pool.guildId, deleted);
+    }
+}
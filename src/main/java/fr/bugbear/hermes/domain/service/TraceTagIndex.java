@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.ManagerModel;
+import fr.bugbear.hermes.data.repository.TraceConfigRepository;
+import fr.bugbear.hermes.domain.entity.ManagerIndex;
+import fr.bugbear.hermes.domain.entity.TraceTagSnapshot;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import lombok.val;
+import net.dv8tion.jda.api.entities.Member;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static net.dv8tion.jda.api.interactions.commands.build.OptionData.MAX_CHOICES;
+
+/**
+ * Trace tags of every guild, kept in memory to answer the {@code /trace} command and its autocomplete without the
+ * database.
+ * <p>
+ * Configurations are loaded until their window ends, including the upcoming ones, so that a window opening or closing
+ * only changes the filtering by date. The index is rebuilt once a window opens or closes, to drop the ended
+ * configurations, and periodically to follow the changes made in the database.
+ */
+@ApplicationScoped
+public class TraceTagIndex implements Logged {
+
+    /**
+     * Number of autocomplete latencies kept to compute the percentiles
+     */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    @Inject TraceConfigRepository traceConfigRepository;
+
+    /**
+     * @param tagsByGuild
+     *         the configurations of each guild, sorted by tag
+     * @param nextBoundary
+     *         the next opening or closing of a window, null if none
+     * @param managers
+     *         the managers of every configuration
+     */
+    private record Snapshot(Map<Long, List<TraceTagSnapshot>> tagsByGuild,
+                            ZonedDateTime nextBoundary,
+                            ManagerIndex managers) {
+    }
+
+    /**
+     * Replaced as a whole on each reload
+     */
+    private volatile Snapshot snapshot;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int nextLatency = 0;
+    private int latencyCount = 0;
+
+    void onStart(@Observes StartupEvent event) {
+        reload();
+    }
+
+    @Scheduled(every = "{forum.cache.refresh-interval}")
+    void scheduledReload() {
+        reload();
+        logLatency();
+    }
+
+    @Scheduled(every = "1m")
+    void reloadAtBoundary() {
+        val current = snapshot;
+        if (current == null || current.nextBoundary() == null)
+            return;
+        if (!ZonedDateTime.now().isBefore(current.nextBoundary()))
+            reload();
+    }
+
+    /**
+     * Reload the trace configurations that are open or upcoming from the database
+     *
+     * @return the number of configurations loaded
+     */
+    @Transactional
+    public int reload() {
+        val now = ZonedDateTime.now();
+        val configs = traceConfigRepository.findNotEnded(now)
+                                           .stream()
+                                           .filter(config -> config.guildId != null
+                                                             && config.tag != null
+                                                             && config.fromDateTime != null)
+                                           .toList();
+        val tags = configs.stream().map(TraceTagSnapshot::of).toList();
+        // the same managers are shared by many configurations
+        val managers = new HashMap<UUID, ManagerModel>();
+        for (val config : configs)
+            if (config.managers != null)
+                config.managers.forEach(manager -> managers.putIfAbsent(manager.id, manager));
+        val tagsByGuild = tags.stream()
+                              .sorted(Comparator.comparing(TraceTagSnapshot::lowerTag))
+                              .collect(Collectors.groupingBy(TraceTagSnapshot::guildId,
+                                                             Collectors.toUnmodifiableList()));
+        val nextBoundary = tags.stream()
+                               .map(tag -> tag.fromDateTime().isAfter(now) ? tag.fromDateTime() : tag.endDateTime())
+                               .min(Comparator.naturalOrder())
+                               .orElse(null);
+        snapshot = new Snapshot(Map.copyOf(tagsByGuild), nextBoundary, ManagerIndex.compile(managers.values()));
+        logger().debug("Trace tags reloaded ({} tags, next window change at {})", tags.size(), nextBoundary);
+        return tags.size();
+    }
+
+    private Snapshot getSnapshot() {
+        var current = snapshot;
+        if (current == null) {
+            reload();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    /**
+     * Find the open configuration of a tag
+     *
+     * @param guildId
+     *         the guild
+     * @param tag
+     *         the exact tag
+     *
+     * @return the configuration if the tag exists and its window is open
+     */
+    public Optional<TraceTagSnapshot> findActive(long guildId, String tag) {
+        val now = ZonedDateTime.now();
+        return getSnapshot().tagsByGuild()
+                            .getOrDefault(guildId, List.of())
+                            .stream()
+                            .filter(config -> config.tag().equals(tag) && config.isActive(now))
+                            .findFirst();
+    }
+
+    /**
+     * Check if a member manages the trace tickets of a configuration open or upcoming. Doesn't load the
+     * configurations, so that it can be called from the JDA cache policy.
+     *
+     * @param member
+     *         the member
+     *
+     * @return true if the member is a manager of any configuration, false until they are loaded
+     */
+    public boolean isManagerOfAnyTrace(Member member) {
+        val current = snapshot;
+        return current != null && current.managers().isManager(member);
+    }
+
+    /**
+     * Find the configurations whose window is open at some point of a period
+     *
+     * @param from
+     *         start of the period
+     * @param until
+     *         end of the period
+     *
+     * @return the configurations of every guild open during the period
+     */
+    public List<TraceTagSnapshot> findOpenBetween(ZonedDateTime from, ZonedDateTime until) {
+        return getSnapshot().tagsByGuild()
+                            .values()
+                            .stream()
+                            .flatMap(List::stream)
+                            .filter(config -> config.fromDateTime().isBefore(until)
+                                              && config.endDateTime().isAfter(from))
+                            .toList();
+    }
+
+    /**
+     * Suggest the open tags a member can use, the tags starting with the query first, then the tags containing it
+     *
+     * @param guildId
+     *         the guild
+     * @param member
+     *         the member typing the command
+     * @param query
+     *         the value typed so far
+     *
+     * @return at most {@link net.dv8tion.jda.api.interactions.commands.build.OptionData#MAX_CHOICES} tags
+     */
+    public List<String> complete(long guildId, Member member, String query) {
+        val start = System.nanoTime();
+        val needle = query.trim().toLowerCase(Locale.ROOT);
+        val now = ZonedDateTime.now();
+        val prefixed = new ArrayList<String>();
+        val containing = new ArrayList<String>();
+        String last = null;
+        for (val config : getSnapshot().tagsByGuild().getOrDefault(guildId, List.of())) {
+            if (prefixed.size() >= MAX_CHOICES)
+                break;
+            // tags are sorted, the same tag with several windows is suggested once
+            if (config.tag().equals(last) || !config.isActive(now) || !config.access().allows(member))
+                continue;
+            if (config.lowerTag().startsWith(needle))
+                prefixed.add(config.tag());
+            else if (containing.size() < MAX_CHOICES && config.lowerTag().contains(needle))
+                containing.add(config.tag());
+            else
+                continue;
+            last = config.tag();
+        }
+        for (int i = 0; prefixed.size() < MAX_CHOICES && i < containing.size(); i++)
+            prefixed.add(containing.get(i));
+        recordLatency(System.nanoTime() - start);
+        return prefixed;
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[nextLatency] = nanos;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+    }
+
+    /**
+     * Get a percentile of the latency of the last autocompletes
+     *
+     * @param percentile
+     *         the percentile, between 0 and 100
+     *
+     * @return the latency in microseconds, 0 if nothing was recorded
+     */
+    public synchronized long latencyMicros(double percentile) {
+        val samples = Arrays.copyOf(latencies, latencyCount);
+        if (samples.length == 0)
+            return 0;
+        Arrays.sort(samples);
+        val index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(samples[Math.max(0, Math.min(index, samples.length - 1))]);
+    }
+
+    private synchronized void logLatency() {
+        if (latencyCount == 0)
+            return;
+        logger().info("Trace autocomplete latency over the last {} requests: p50 {} µs, p99 {} µs",
+                      latencyCount,
+                      latencyMicros(50),
+                      latencyMicros(99));
+    }
+}
@@ -9,8 +9,15 @@ import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.data.model.ManagerModel;
 import fr.bugbear.hermes.data.model.TraceConfigModel;
 import fr.bugbear.hermes.data.model.TraceTicketModel;
+import fr.bugbear.hermes.data.model.TranscriptModel;
 import fr.bugbear.hermes.data.repository.TraceConfigRepository;
 import fr.bugbear.hermes.data.repository.TraceTicketRepository;
+import fr.bugbear.hermes.domain.entity.ManagerIndex;
+import fr.bugbear.hermes.domain.service.RestScheduler.Lane;
+import fr.bugbear.hermes.utils.ComponentId;
+import fr.bugbear.hermes.utils.Tracing;
+import io.opentelemetry.instrumentation.annotations.WithSpan;
+import io.quarkus.scheduler.Scheduled;
 import jakarta.annotation.Nonnull;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -20,7 +27,7 @@ import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
-import net.dv8tion.jda.api.entities.channel.concrete.Category;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.CommandAutoCompleteInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
@@ -33,21 +40,17 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import java.time.ZonedDateTime;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static fr.bugbear.hermes.domain.entity.ModalEventType.NEW_TRACE_TICKET;
-import static fr.bugbear.hermes.utils.DiscordUtils.copyMessagesToLogChannelThenDelete;
-import static fr.bugbear.hermes.utils.DiscordUtils.extractUUID;
-import static fr.bugbear.hermes.utils.DiscordUtils.getAllMessages;
 import static fr.bugbear.hermes.utils.DiscordUtils.getOptionAsString;
 import static fr.bugbear.hermes.utils.DiscordUtils.maxString;
 import static fr.bugbear.hermes.utils.EmbedUtils.newTraceTicketLog;
 import static fr.bugbear.hermes.utils.EmbedUtils.traceTicketRules;
 import static java.util.Objects.requireNonNull;
-import static net.dv8tion.jda.api.Permission.MANAGE_CHANNEL;
-import static net.dv8tion.jda.api.Permission.MANAGE_THREADS;
 import static net.dv8tion.jda.api.Permission.MESSAGE_HISTORY;
 import static net.dv8tion.jda.api.Permission.MESSAGE_SEND;
 import static net.dv8tion.jda.api.Permission.VIEW_CHANNEL;
@@ -56,32 +59,21 @@ import static net.dv8tion.jda.api.Permission.VOICE_SPEAK;
 import static net.dv8tion.jda.api.Permission.VOICE_STREAM;
 import static net.dv8tion.jda.api.Permission.VOICE_USE_EXTERNAL_SOUNDS;
 import static net.dv8tion.jda.api.Permission.VOICE_USE_SOUNDBOARD;
-import static net.dv8tion.jda.api.interactions.commands.build.OptionData.MAX_CHOICES;
 
 @ApplicationScoped
 public class TraceTicketService implements Logged {
 
     @Inject TraceConfigRepository traceConfigRepository;
     @Inject TraceTicketRepository traceTicketRepository;
+    @Inject TranscriptService transcriptService;
+    @Inject TraceTagIndex traceTagIndex;
+    @Inject TraceCategoryAllocator traceCategoryAllocator;
+    @Inject TraceChannelPool traceChannelPool;
+    @Inject RestScheduler restScheduler;
 
-    @ConfigProperty(name = "discord.trace.ticket.category.name") String traceTicketCategoryName;
     @ConfigProperty(name = "discord.trace.form.login.max-size", defaultValue = "50") Integer loginMaxSize;
     @ConfigProperty(name = "discord.trace.form.login.min-size", defaultValue = "1") Integer loginMinSize;
 
-    /**
-     * Maximum number of channels that can be created in a category
-     */
-    private static final Short MAX_CATEGORY_CHANNELS = 50;
-
-    /**
-     * Permissions for managers
-     */
-    private static final List<Permission> MANAGER_PERMISSIONS = List.of(VIEW_CHANNEL,
-                                                                        MESSAGE_SEND,
-                                                                        MESSAGE_HISTORY,
-                                                                        MANAGE_CHANNEL,
-                                                                        MANAGE_THREADS);
-
     /**
      * Permissions for ticket creator in text channel
      */
@@ -103,6 +95,24 @@ public class TraceTicketService implements Logged {
                                                                                       MESSAGE_SEND,
                                                                                       VOICE_USE_EXTERNAL_SOUNDS);
 
+    /**
+     * Compiled managers of the trace configurations, by configuration ID
+     */
+    private final Map<UUID, ManagerIndex> compiledManagers = new ConcurrentHashMap<>();
+
+    private ManagerIndex compiledManagers(TraceConfigModel traceConfig) {
+        return compiledManagers.computeIfAbsent(traceConfig.id,
+                                                id -> ManagerIndex.compile(List.copyOf(traceConfig.managers)));
+    }
+
+    /**
+     * Forget the compiled trace configurations, so that they are compiled again from the database
+     */
+    @Scheduled(every = "{forum.cache.refresh-interval}")
+    public void clearCompiledConfigs() {
+        compiledManagers.clear();
+    }
+
     /**
      * Get the manager configuration for a member
      *
@@ -114,87 +124,59 @@ public class TraceTicketService implements Logged {
      * @return the manager configuration if the member is allowed to manage the ticket
      */
     public Optional<ManagerModel> getManagerConfig(Member member, TraceTicketModel traceTicket) {
-        val traceConfig = traceTicket.traceConfig;
-
-        return traceConfig.managers.stream()
-                                   .filter(m -> m.users.contains(member.getIdLong()) ||
-                                                m.roles.stream()
-                                                       .anyMatch(role -> member.getRoles()
-                                                                               .stream()
-                                                                               .anyMatch(r -> r.getIdLong()
-                                                                                              == role)))
-                                   .findFirst();
+        return compiledManagers(traceTicket.traceConfig).resolve(member);
     }
 
     /**
-     * Check if a member can use a tag
+     * Open a channel of the pool to a member
      *
+     * @param channel
+     *         the channel claimed
+     * @param name
+     *         the name of the trace ticket
      * @param member
-     *         the member
-     * @param tagConfig
-     *         the tag configuration
+     *         the member who created the trace ticket
      *
-     * @return true if the member can use the tag
+     * @return the channel, renamed, visible to the member and out of the pool
      */
-    public boolean canMemberUseTag(Member member, TraceConfigModel tagConfig) {
-        return tagConfig.usersAllowed.contains(member.getIdLong()) ||
-               tagConfig.rolesAllowed.stream()
-                                     .anyMatch(role -> member.getRoles()
-                                                             .stream()
-                                                             .anyMatch(r -> r.getIdLong() == role));
-
+    private TextChannel openChannel(TextChannel channel, String name, Member member) {
+        channel.getManager()
+               .setName(name)
+               // the channel is not recognized as part of the pool anymore, see TraceChannelPool.POOL_TOPIC_PREFIX
+               .setTopic(null)
+               .putMemberPermissionOverride(member.getIdLong(), USER_TEXT_PERMISSIONS, List.of())
+               .complete();
+        return channel;
     }
 
     /**
-     * Get the available category for a guild or create a new one
+     * Create a channel in a trace category, visible to a member
      *
      * @param guild
      *         the guild
      * @param tagConfig
      *         the tag configuration
+     * @param name
+     *         the name of the trace ticket
+     * @param member
+     *         the member who created the trace ticket
      *
-     * @return the category
+     * @return the channel created
      */
-    private Category getAvailableOrCreateCategory(Guild guild, TraceConfigModel tagConfig) {
-        val categories = guild.getCategoriesByName(traceTicketCategoryName, true);
-
-        // find a category with maximum of 50 channels
-        return categories
-                .stream()
-                .filter(category -> category.getChannels().size() < MAX_CATEGORY_CHANNELS)
-                .findFirst()
-                .orElseGet(() -> {
-                    logger().info("Creating a new category {} for guild {}", traceTicketCategoryName, guild.getId());
-                    var category = guild.createCategory(traceTicketCategoryName)
-                                        .setPosition(categories.stream().mapToInt(Category::getPosition).max()
-                                                               .orElse(0) + 1)
-                                        // make the category private
-                                        .addPermissionOverride(guild.getPublicRole(), List.of(), List.of(VIEW_CHANNEL))
-                                        .addPermissionOverride(guild.getBotRole(), List.of(VIEW_CHANNEL), List.of())
-                                        .complete();
-
-                    val categoryManager = category.getManager();
-
-                    tagConfig.managers.forEach(manager -> {
-                        //noinspection ResultOfMethodCallIgnored
-                        manager.roles.stream()
-                                     .map(guild::getRoleById)
-                                     .filter(Objects::nonNull)
-                                     .forEach(r -> categoryManager.putRolePermissionOverride(r.getIdLong(),
-                                                                                             MANAGER_PERMISSIONS,
-                                                                                             List.of()));
-                        //noinspection ResultOfMethodCallIgnored
-                        manager.users.stream()
-                                     .map(guild::getMemberById)
-                                     .filter(Objects::nonNull)
-                                     .forEach(u -> categoryManager
-                                             .putMemberPermissionOverride(u.getIdLong(),
-                                                                          MANAGER_PERMISSIONS,
-                                                                          List.of()));
-                    });
-                    categoryManager.queue();
-                    return category;
-                });
+    private TextChannel createChannel(Guild guild, TraceConfigModel tagConfig, String name, Member member) {
+        val reservation = traceCategoryAllocator.reserve(guild,
+                                                         traceCategoryAllocator.managerOverrides(guild,
+                                                                                                 tagConfig.managers));
+        TextChannel channel;
+        try {
+            channel = reservation.category().createTextChannel(name).complete();
+        } finally {
+            reservation.release();
+        }
+        channel.getManager()
+               .putMemberPermissionOverride(member.getIdLong(), USER_TEXT_PERMISSIONS, List.of())
+               .complete();
+        return channel;
     }
 
     /**
@@ -203,24 +185,22 @@ public class TraceTicketService implements Logged {
      * @param event
      *         the event
      */
-    @Transactional
+    @WithSpan
     public void traceTicket(SlashCommandInteractionEvent event) {
         val tagOption = getOptionAsString(event, "tag").orElseThrow();
-        // check that the event was triggered in a thread channel
-        val tagConfigModel = traceConfigRepository.findByTag(requireNonNull(event.getGuild()).getIdLong(),
-                                                             tagOption);
+        val tagConfigModel = traceTagIndex.findActive(requireNonNull(event.getGuild()).getIdLong(), tagOption);
         if (tagConfigModel.isEmpty()) {
             event.reply("This tag does not exist or is not open").setEphemeral(true).queue();
             return;
         }
         val tagConfig = tagConfigModel.get();
         val member = requireNonNull(event.getMember());
-        if (!canMemberUseTag(member, tagConfig)) {
+        if (!tagConfig.access().allows(member)) {
             event.reply("You are not allowed to create a trace ticket with this tag.").setEphemeral(true).queue();
             return;
         }
 
-        logger().info("User {} is creating a trace ticket with tag {}. Sending modal", member.getId(), tagConfig.id);
+        logger().info("User {} is creating a trace ticket with tag {}. Sending modal", member.getId(), tagConfig.id());
 
         TextInput login = TextInput.create("login", "Login", TextInputStyle.SHORT)
                                    .setPlaceholder("xavier.login")
@@ -234,7 +214,7 @@ public class TraceTicketService implements Logged {
                                       .build();
 
         // trace the ticket
-        Modal modal = Modal.create("%s-%s".formatted(NEW_TRACE_TICKET, tagConfig.id), "Trace ticket")
+        Modal modal = Modal.create(ComponentId.encode(NEW_TRACE_TICKET, tagConfig.id()), "Trace ticket")
                            .addComponents(ActionRow.of(login), ActionRow.of(question)).build();
         event.replyModal(modal).queue();
     }
@@ -245,10 +225,11 @@ public class TraceTicketService implements Logged {
      * @param event
      *         the event
      */
+    @WithSpan
     @Transactional
     public void onModalTraceTicket(@Nonnull ModalInteractionEvent event) {
         // get uuid from the modal id
-        val hasTagId = extractUUID(NEW_TRACE_TICKET, event.getModalId());
+        val hasTagId = ComponentId.decodeUUID(NEW_TRACE_TICKET, event.getModalId());
         if (hasTagId.isEmpty()) {
             logger().error("Could not match the modal id : {}", event.getModalId());
             event.reply("An error occurred").setEphemeral(true).queue();
@@ -264,15 +245,12 @@ public class TraceTicketService implements Logged {
         val question = event.getValue("question");
         val guild = requireNonNull(event.getGuild());
         val member = requireNonNull(event.getMember());
-        val category = getAvailableOrCreateCategory(guild, tagConfig);
         val webhookChannel = requireNonNull(event.getJDA().getTextChannelById(tagConfig.webhookChannelId));
 
         val newChannelName = maxString("trace-%s".formatted(login.replace(".", "_")), 100, false);
-        val newChannel = category.createTextChannel(newChannelName).complete();
-
-        newChannel.getManager()
-                  .putMemberPermissionOverride(member.getIdLong(), USER_TEXT_PERMISSIONS, List.of())
-                  .complete();
+        val newChannel = traceChannelPool.claim(tagId)
+                                         .map(channel -> openChannel(channel, newChannelName, member))
+                                         .orElseGet(() -> createChannel(guild, tagConfig, newChannelName, member));
         event.reply("New channel created: %s".formatted(newChannel.getAsMention())).setEphemeral(true).queue();
 
         val traceTicket = new TraceTicketModel()
@@ -284,6 +262,7 @@ public class TraceTicketService implements Logged {
                 .withCreatedBy(event.getUser().getIdLong());
 
         traceTicketRepository.persist(traceTicket);
+        Tracing.tagTraceTicket(traceTicket);
 
         newChannel.sendMessageEmbeds(traceTicketRules())
                   .addContent("%s (login: %s)".formatted(event.getUser().getAsMention(), login))
@@ -300,9 +279,9 @@ public class TraceTicketService implements Logged {
             }
         }
 
-        webhookChannel.sendMessageEmbeds(newTraceTicketLog(traceTicket, newChannel, member, login, question))
-                      .addActionRow(Button.link(newChannel.getJumpUrl(), "Go to"))
-                      .queue();
+        val log = webhookChannel.sendMessageEmbeds(newTraceTicketLog(traceTicket, newChannel, member, login, question))
+                                .addActionRow(Button.link(newChannel.getJumpUrl(), "Go to"));
+        restScheduler.run(Lane.LOG, log::queue);
     }
 
     /**
@@ -311,6 +290,7 @@ public class TraceTicketService implements Logged {
      * @param event
      *         the event
      */
+    @WithSpan
     @Transactional
     public void associateVocalChannel(SlashCommandInteractionEvent event) {
         // check that the event was triggered in a text channel
@@ -329,6 +309,7 @@ public class TraceTicketService implements Logged {
             return;
         }
         val traceTicket = traceTicketModel.get();
+        Tracing.tagTraceTicket(traceTicket);
 
         // check if manager
         if (getManagerConfig(event.getMember(), traceTicket).isEmpty()) {
@@ -368,6 +349,7 @@ public class TraceTicketService implements Logged {
      * @param event
      *         the event
      */
+    @WithSpan
     @Transactional
     public void closeTraceTicket(SlashCommandInteractionEvent event) {
         if (event.getChannel().getType() != ChannelType.TEXT) {
@@ -385,6 +367,7 @@ public class TraceTicketService implements Logged {
             return;
         }
         val traceTicket = traceTicketModel.get();
+        Tracing.tagTraceTicket(traceTicket);
 
         if (getManagerConfig(event.getMember(), traceTicket).isEmpty()) {
             event.getHook().editOriginal("You are not allowed to close this trace ticket").queue();
@@ -393,10 +376,15 @@ public class TraceTicketService implements Logged {
 
         val webhookChannel = requireNonNull(event.getJDA()
                                                  .getTextChannelById(traceTicket.traceConfig.webhookChannelId));
-        copyMessagesToLogChannelThenDelete(getAllMessages(channel),
-                                           webhookChannel,
-                                           maxString("log-%s".formatted(channel.getName()), 100, false),
-                                           channel);
+        val transcript = new TranscriptModel().withTraceTicketId(traceTicket.id)
+                                              .withGuildId(guild.getIdLong())
+                                              .withChannelId(channel.getIdLong())
+                                              .withName(channel.getName())
+                                              .withClosedAt(ZonedDateTime.now());
+        transcriptService.archiveThenDelete(channel,
+                                            webhookChannel,
+                                            maxString("log-%s".formatted(channel.getName()), 100, false),
+                                            transcript);
 
         traceTicket.updatedAt = ZonedDateTime.now();
         traceTicket.closedAt = ZonedDateTime.now();
@@ -424,28 +412,9 @@ public class TraceTicketService implements Logged {
             event.replyChoices(List.of()).queue();
             return;
         }
-        val focusedOptionValue = event.getFocusedOption().getValue();
-
-        val now = ZonedDateTime.now();
-        val availableTags = traceConfigRepository.findTagsByGuild(guild)
-                                                 .stream()
-                                                 .filter(c -> c.fromDateTime.isBefore(now)
-                                                              && c.endDateTime.isAfter(now))
-                                                 .toList();
-
-        val tags = availableTags.stream()
-                                .filter(tag -> canMemberUseTag(member, tag))
-                                .map(tag -> tag.tag)
-                                .toList();
-
-        if (focusedOptionValue.isBlank()) {
-            event.replyChoiceStrings(tags.stream().limit(MAX_CHOICES).toList()).queue();
-            return;
-        }
-        event.replyChoiceStrings(tags.stream()
-                                     .filter(tag -> tag.toLowerCase().contains(focusedOptionValue))
-                                     .limit(MAX_CHOICES)
-                                     .toList())
+        event.replyChoiceStrings(traceTagIndex.complete(guild.getIdLong(),
+                                                        member,
+                                                        event.getFocusedOption().getValue()))
              .queue();
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.TranscriptModel;
+import fr.bugbear.hermes.domain.service.RestScheduler.Lane;
+import fr.bugbear.hermes.utils.HistoryReader;
+import fr.bugbear.hermes.utils.TranscriptPacker;
+import fr.bugbear.hermes.utils.TranscriptWriter;
+import io.opentelemetry.context.Context;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.val;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.entities.channel.middleman.GuildMessageChannel;
+import net.dv8tion.jda.api.utils.FileUpload;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives the messages of a ticket channel before deleting it.
+ */
+@ApplicationScoped
+public class TranscriptService implements Logged {
+
+    public enum Mode {
+        /**
+         * Messages are copied into a thread of the log channel
+         */
+        REPLAY,
+        /**
+         * Messages are exported to a gzip JSON lines file, uploaded in one message to the log channel
+         */
+        FILE
+    }
+
+    @Inject TranscriptStore transcriptStore;
+    @Inject RestScheduler restScheduler;
+
+    @ConfigProperty(name = "transcript.archive.mode", defaultValue = "REPLAY") Mode mode;
+
+    /**
+     * Archive the messages of a channel to the log channel, then delete the channel
+     *
+     * @param channel
+     *         the channel to archive and delete
+     * @param logChannel
+     *         the log channel
+     * @param name
+     *         name of the archive
+     * @param transcript
+     *         the transcript to store in the database, not persisted yet
+     */
+    public void archiveThenDelete(GuildMessageChannel channel,
+                                  TextChannel logChannel,
+                                  String name,
+                                  TranscriptModel transcript) {
+        // the history is read and archived page by page with blocking calls, don't hold the caller
+        // its calls go after the replies and logs
+        Thread.ofVirtual()
+              .name("hermes-transcript-" + channel.getId())
+              // the calls are traced in the span of the event that closed the ticket
+              .start(Context.current().wrap(() -> restScheduler.run(Lane.ARCHIVE, () -> {
+                  val recorder = transcriptStore.record(transcript);
+                  if (mode == Mode.REPLAY)
+                      replayThenDelete(channel, logChannel, name, recorder);
+                  else
+                      exportThenDelete(channel, logChannel, name, recorder);
+              })));
+    }
+
+    /**
+     * Store the messages of a channel in the database, without archiving nor deleting it
+     *
+     * @param channel
+     *         the channel
+     * @param transcript
+     *         the transcript to store, not persisted yet
+     */
+    public void store(GuildMessageChannel channel, TranscriptModel transcript) {
+        Thread.ofVirtual()
+              .name("hermes-transcript-" + channel.getId())
+              .start(Context.current().wrap(() -> restScheduler.run(Lane.ARCHIVE, () -> {
+                  try {
+                      val recorder = transcriptStore.record(transcript);
+                      HistoryReader.forEachMessage(channel, recorder);
+                      recorder.finish();
+                  } catch (Exception e) {
+                      logger().error("Couldn't store the transcript of channel {}", channel.getId(), e);
+                  }
+              })));
+    }
+
+    /**
+     * Copy the messages into a new thread of the log channel, packed in as few messages as possible and sent one
+     * after the other while the history is read
+     */
+    private void replayThenDelete(GuildMessageChannel channel,
+                                  TextChannel logChannel,
+                                  String name,
+                                  TranscriptStore.Recorder recorder) {
+        try {
+            val start = System.currentTimeMillis();
+            val thread = logChannel.createThreadChannel(name).complete();
+            val packer = new TranscriptPacker(chunk -> thread.sendMessage(chunk).complete());
+            HistoryReader.forEachMessage(channel, message -> {
+                recorder.accept(message);
+                packer.add(message);
+            });
+            packer.flush();
+            recorder.finish();
+            // the channel is deleted only once the last chunk is sent
+            channel.delete().reason("Ticket closed").complete();
+            logger().info("Transcript of channel {} replayed ({} messages in {} messages, {} ms)",
+                          channel.getId(),
+                          packer.getLines(),
+                          packer.getChunks(),
+                          System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger().error("Couldn't replay the transcript of channel {}, the channel is kept", channel.getId(), e);
+        }
+    }
+
+    private void exportThenDelete(GuildMessageChannel channel,
+                                  TextChannel logChannel,
+                                  String name,
+                                  TranscriptStore.Recorder recorder) {
+        final Path file;
+        final int count;
+        try {
+            file = Files.createTempFile("hermes-transcript-", ".jsonl.gz");
+        } catch (IOException e) {
+            logger().error("Couldn't create the transcript file of channel {}", channel.getId(), e);
+            return;
+        }
+        try (val output = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            count = writeTranscript(channel, output, recorder);
+        } catch (Exception e) {
+            logger().error("Couldn't export the transcript of channel {}, the channel is kept", channel.getId(), e);
+            deleteFile(file);
+            return;
+        }
+
+        final long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            logger().error("Couldn't read the transcript file of channel {}", channel.getId(), e);
+            deleteFile(file);
+            return;
+        }
+        recorder.finish();
+        if (size > logChannel.getGuild().getMaxFileSize()) {
+            logger().warn("Transcript of channel {} is too large to be uploaded ({} bytes), replaying it instead",
+                          channel.getId(), size);
+            deleteFile(file);
+            // the messages are already stored
+            replayThenDelete(channel, logChannel, name, transcriptStore.skip());
+            return;
+        }
+
+        logger().info("Transcript of channel {} exported ({} messages, {} bytes)", channel.getId(), count, size);
+        logChannel.sendMessage("Transcript of `%s` (%d messages)".formatted(name, count))
+                  .addFiles(FileUpload.fromData(file.toFile(), name + ".jsonl.gz"))
+                  .flatMap(message -> channel.delete().reason("Ticket closed"))
+                  .queue(success -> deleteFile(file),
+                         error -> {
+                             logger().error("Couldn't upload the transcript of channel {}", channel.getId(), error);
+                             deleteFile(file);
+                         });
+    }
+
+    /**
+     * Write the messages of a channel as JSON lines, oldest first, while the history is read
+     *
+     * @return the number of messages written
+     */
+    private int writeTranscript(GuildMessageChannel channel, OutputStream output, TranscriptStore.Recorder recorder) {
+        val writer = new TranscriptWriter(output);
+        HistoryReader.forEachMessage(channel, message -> {
+            recorder.accept(message);
+            writer.add(message);
+        });
+        return writer.getLines();
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger().warn("Couldn't delete the transcript file {}", file, e);
+        }
+    }
+}
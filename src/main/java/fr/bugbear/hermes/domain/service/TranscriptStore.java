@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.Logged;
+import fr.bugbear.hermes.data.model.TranscriptModel;
+import fr.bugbear.hermes.data.repository.TranscriptRepository;
+import fr.bugbear.hermes.data.repository.TranscriptRepository.MessageRow;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import lombok.val;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.utils.TimeFormat;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static fr.bugbear.hermes.utils.DiscordUtils.getOptionAsString;
+import static fr.bugbear.hermes.utils.DiscordUtils.maxString;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stores the transcripts of closed tickets and trace tickets in the database, and searches them.
+ * <p>
+ * Messages are recorded while the history is read at close time, and written in JDBC batches. Their content is
+ * compressed by Postgres and indexed in a {@code tsvector} column.
+ */
+@ApplicationScoped
+public class TranscriptStore implements Logged {
+
+    @Inject TranscriptRepository transcriptRepository;
+
+    @ConfigProperty(name = "transcript.store.enabled", defaultValue = "true") boolean enabled;
+    @ConfigProperty(name = "transcript.store.batch-size", defaultValue = "500") Integer batchSize;
+    @ConfigProperty(name = "transcript.search.max-results", defaultValue = "5") Integer maxResults;
+
+    /**
+     * Records the messages of a transcript. Errors are logged and stop the recording, without interrupting the
+     * archiving of the channel.
+     */
+    public class Recorder implements Consumer<Message> {
+        private final Long transcriptId;
+        private final List<MessageRow> batch = new ArrayList<>();
+        private int count = 0;
+        private boolean failed = false;
+
+        private Recorder(Long transcriptId) {
+            this.transcriptId = transcriptId;
+        }
+
+        @Override public void accept(Message message) {
+            count++;
+            if (transcriptId == null || failed)
+                return;
+            batch.add(new MessageRow(message.getIdLong(),
+                                     message.getAuthor().getIdLong(),
+                                     message.getAuthor().getEffectiveName(),
+                                     message.getTimeCreated(),
+                                     message.getContentRaw()));
+            if (batch.size() >= batchSize)
+                flush();
+        }
+
+        private void flush() {
+            try {
+                QuarkusTransaction.requiringNew().run(() -> transcriptRepository.insertMessages(transcriptId, batch));
+            } catch (Exception e) {
+                failed = true;
+                logger().error("Couldn't store the messages of transcript #{}", transcriptId, e);
+            }
+            batch.clear();
+        }
+
+        /**
+         * Write the remaining messages and the message count
+         */
+        public void finish() {
+            if (transcriptId == null || failed)
+                return;
+            flush();
+            if (failed)
+                return;
+            QuarkusTransaction.requiringNew().run(() -> transcriptRepository.update("messageCount = ?1 where id = ?2",
+                                                                                    count,
+                                                                                    transcriptId));
+            logger().debug("Transcript #{} stored ({} messages)", transcriptId, count);
+        }
+    }
+
+    /**
+     * Start recording a transcript. A transcript already stored for the same ticket is completed instead of
+     * duplicated.
+     *
+     * @param transcript
+     *         the transcript, not persisted yet
+     *
+     * @return the recorder to feed with the messages, oldest first
+     */
+    public Recorder record(TranscriptModel transcript) {
+        if (!enabled)
+            return skip();
+        try {
+            return new Recorder(QuarkusTransaction.requiringNew().call(() -> save(transcript)));
+        } catch (Exception e) {
+            logger().error("Couldn't create the transcript of channel {}", transcript.channelId, e);
+            return skip();
+        }
+    }
+
+    /**
+     * @return a recorder ignoring the messages
+     */
+    public Recorder skip() {
+        return new Recorder(null);
+    }
+
+    private Long save(TranscriptModel transcript) {
+        val existing = transcript.ticketId != null
+                       ? transcriptRepository.find("ticketId", transcript.ticketId).firstResultOptional()
+                       : transcriptRepository.find("traceTicketId", transcript.traceTicketId).firstResultOptional();
+        if (existing.isPresent()) {
+            existing.get().name = transcript.name;
+            existing.get().closedAt = transcript.closedAt;
+            return existing.get().id;
+        }
+        transcriptRepository.persist(transcript);
+        return transcript.id;
+    }
+
+    /**
+     * Search the transcripts of the guild for the query of the command
+     *
+     * @param event
+     *         the event
+     */
+    @Transactional
+    public void search(SlashCommandInteractionEvent event) {
+        val query = getOptionAsString(event, "query").orElseThrow();
+        val guild = requireNonNull(event.getGuild());
+        event.deferReply(true).queue();
+
+        val start = System.currentTimeMillis();
+        val hits = transcriptRepository.search(guild.getIdLong(), query, maxResults);
+        val elapsed = System.currentTimeMillis() - start;
+        logger().debug("Search \"{}\" returned {} transcripts in {} ms", query, hits.size(), elapsed);
+        if (hits.isEmpty()) {
+            event.getHook().editOriginal("No transcript matches `%s`".formatted(query)).queue();
+            return;
+        }
+
+        val embed = new EmbedBuilder().setTitle(maxString("Transcripts matching \"%s\"".formatted(query), 256))
+                                      .setColor(Color.BLUE)
+                                      .setFooter("%d results in %d ms".formatted(hits.size(), elapsed));
+        for (val hit : hits) {
+            val ticket = hit.ticketId() != null ? "Ticket #%d".formatted(hit.ticketId()) : "Trace ticket";
+            val closedAt = hit.closedAt() != null ? TimeFormat.DATE_TIME_SHORT.format(hit.closedAt()) : "unknown";
+            embed.addField(maxString("%s - %s".formatted(ticket, hit.name()), 256),
+                           maxString("Closed %s\n%s".formatted(closedAt, hit.headline()), 1024),
+                           false);
+        }
+        event.getHook().editOriginalEmbeds(embed.build()).queue();
+    }
+}
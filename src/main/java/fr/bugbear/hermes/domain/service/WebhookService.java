@@ -8,33 +8,228 @@ package fr.bugbear.hermes.domain.service;
 import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.data.model.ForumModel;
 import fr.bugbear.hermes.data.model.TicketModel;
+import fr.bugbear.hermes.domain.service.RestScheduler.Lane;
+import io.opentelemetry.instrumentation.annotations.WithSpan;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
-import lombok.AllArgsConstructor;
 import lombok.val;
 import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.requests.restaction.MessageCreateAction;
-import net.dv8tion.jda.api.requests.restaction.MessageEditAction;
 import net.dv8tion.jda.api.utils.messages.MessageEditData;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static fr.bugbear.hermes.presentation.bot.BotAdapterStarter.client;
 import static java.util.Objects.requireNonNull;
 
-@ApplicationScoped @AllArgsConstructor(onConstructor_ = {@Inject})
+@ApplicationScoped
 public class WebhookService implements Logged {
 
+    @Inject RestScheduler restScheduler;
+
+    @ConfigProperty(name = "webhook.embed.quiet-period", defaultValue = "1s") Duration quietPeriod;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().daemon().name("hermes-webhook-edits").factory());
+
+    /**
+     * Latest embed waiting to be sent, by ticket ID
+     */
+    private final ConcurrentHashMap<Long, PendingEdit> pendingEdits = new ConcurrentHashMap<>();
+
+    /**
+     * URL of the webhook message sent since the ticket was loaded, by ticket ID
+     */
+    private final ConcurrentHashMap<Long, String> messageUrls = new ConcurrentHashMap<>();
+
+    /**
+     * Latest embed of a ticket whose webhook message is not sent yet, by ticket ID
+     */
+    private final ConcurrentHashMap<Long, AwaitingEdit> awaitingEdits = new ConcurrentHashMap<>();
+
+    /**
+     * Hash of the last embed sent, by ticket ID
+     */
+    private final ConcurrentHashMap<Long, Integer> sentHashes = new ConcurrentHashMap<>();
+
+    private final LongAdder editsRequested = new LongAdder();
+    private final LongAdder editsCoalesced = new LongAdder();
+    private final LongAdder editsSkipped = new LongAdder();
+    private final LongAdder editsSent = new LongAdder();
+
+    /**
+     * Embed edit waiting for the quiet period to end
+     *
+     * @param closed
+     *         true if the ticket is closed, so that its last sent hash can be forgotten
+     */
+    private record PendingEdit(long channelId, long messageId, MessageEmbed embed, boolean closed, long requestedAt) {
+    }
+
+    /**
+     * Embed edit waiting for the webhook message of its ticket to be sent
+     */
+    private record AwaitingEdit(MessageEmbed embed, boolean closed) {
+    }
+
     public MessageCreateAction sendEmbed(ForumModel forum, MessageEmbed embed) {
-        val webhook = forum.webhookChannelId;
-        return requireNonNull(client.getTextChannelById(webhook)).sendMessageEmbeds(embed);
+        return sendEmbed(forum.webhookChannelId, embed);
+    }
+
+    public MessageCreateAction sendEmbed(Long webhookChannelId, MessageEmbed embed) {
+        return requireNonNull(client.getTextChannelById(webhookChannelId)).sendMessageEmbeds(embed);
+    }
+
+    /**
+     * Update the webhook message of a ticket.
+     * <p>
+     * The edit is sent once no other update was requested for the ticket during the quiet period, only the latest
+     * embed being sent, and it is skipped if the embed is the same as the last one sent. If the webhook message of the
+     * ticket is not sent yet, the latest embed is kept until {@link #messageSent(long, String)} is called.
+     *
+     * @param ticket
+     *         the ticket
+     * @param embed
+     *         the new embed
+     */
+    @WithSpan
+    public void updateEmbed(TicketModel ticket, MessageEmbed embed) {
+        editsRequested.increment();
+        val closed = ticket.status == TicketModel.Status.CLOSED || ticket.status == TicketModel.Status.DELETED;
+        // the ticket may have been loaded before the URL was saved
+        val url = ticket.webhookMessageUrl != null ? ticket.webhookMessageUrl : messageUrls.get(ticket.id);
+        if (url != null) {
+            schedule(ticket.id, url, embed, closed);
+            return;
+        }
+        logger().debug("Ticket #{} has no webhook message yet, keeping its embed", ticket.id);
+        val edit = new AwaitingEdit(embed, closed);
+        if (awaitingEdits.put(ticket.id, edit) != null)
+            editsCoalesced.increment();
+        // the message may have been sent in the meantime
+        val sentUrl = messageUrls.get(ticket.id);
+        if (sentUrl != null && awaitingEdits.remove(ticket.id, edit))
+            schedule(ticket.id, sentUrl, embed, closed);
     }
 
-    public MessageEditAction editEmbed(TicketModel ticket, MessageEmbed embed) {
+    /**
+     * Record the webhook message of a ticket, and send the embed requested before it existed.
+     *
+     * @param ticketId
+     *         the ticket ID
+     * @param url
+     *         the jump URL of the webhook message
+     */
+    public void messageSent(long ticketId, String url) {
+        messageUrls.put(ticketId, url);
+        val edit = awaitingEdits.remove(ticketId);
+        if (edit != null)
+            schedule(ticketId, url, edit.embed(), edit.closed());
+    }
+
+    private void schedule(long ticketId, String url, MessageEmbed embed, boolean closed) {
         // url follow format https://discord.com/channels/guildId/channelId/messageId
-        val split = ticket.webhookMessageUrl.split("/");
-        val channelId = Long.parseLong(split[5]);
-        val messageId = Long.parseLong(split[6]);
-        val channel = requireNonNull(client.getTextChannelById(channelId));
+        val split = url.split("/");
+        val edit = new PendingEdit(Long.parseLong(split[5]),
+                                   Long.parseLong(split[6]),
+                                   embed,
+                                   closed,
+                                   System.nanoTime());
+        if (pendingEdits.put(ticketId, edit) != null) {
+            // a flush is already scheduled for this ticket, it will pick the latest embed
+            editsCoalesced.increment();
+            return;
+        }
+        scheduler.schedule(() -> flush(ticketId), quietPeriod.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private void flush(long ticketId) {
+        val edit = pendingEdits.get(ticketId);
+        if (edit == null)
+            return;
+        val remaining = quietPeriod.toNanos() - (System.nanoTime() - edit.requestedAt());
+        if (remaining > 0) {
+            scheduler.schedule(() -> flush(ticketId), remaining, TimeUnit.NANOSECONDS);
+            return;
+        }
+        if (!pendingEdits.remove(ticketId, edit)) {
+            // replaced in the meantime, wait for the quiet period of the new embed
+            flush(ticketId);
+            return;
+        }
+        send(ticketId, edit);
+    }
+
+    private void send(long ticketId, PendingEdit edit) {
+        val hash = Arrays.hashCode(edit.embed().toData().toJson());
+        if (edit.closed())
+            // the URL is in the database by now
+            messageUrls.remove(ticketId);
+        val lastHash = edit.closed() ? sentHashes.remove(ticketId) : sentHashes.get(ticketId);
+        if (lastHash != null && lastHash == hash) {
+            editsSkipped.increment();
+            return;
+        }
+        val channel = client.getTextChannelById(edit.channelId());
+        if (channel == null) {
+            logger().warn("Webhook channel {} not found, can't update ticket #{}", edit.channelId(), ticketId);
+            return;
+        }
+        editsSent.increment();
+        val action = channel.editMessageById(edit.messageId(), MessageEditData.fromEmbeds(edit.embed()));
+        restScheduler.run(Lane.LOG, () -> action.queue(message -> {
+                                                           if (!edit.closed())
+                                                               sentHashes.put(ticketId, hash);
+                                                       },
+                                                       error -> logger().error("Couldn't update webhook message of "
+                                                                               + "ticket #{}", ticketId, error)));
+    }
+
+    /**
+     * Forget the last embed sent for a ticket that left the active set.
+     * <p>
+     * Its hash would otherwise be kept until the application stops, as only the updates of a closed ticket clear it.
+     * An embed still waiting for the webhook message of the ticket is dropped.
+     *
+     * @param ticketId
+     *         the ticket ID
+     */
+    public void forget(long ticketId) {
+        sentHashes.remove(ticketId);
+        messageUrls.remove(ticketId);
+        awaitingEdits.remove(ticketId);
+    }
+
+    @PreDestroy void preDestroy() {
+        scheduler.shutdownNow();
+        // send what is left without waiting for the quiet period
+        pendingEdits.forEach((ticketId, edit) -> {
+            if (pendingEdits.remove(ticketId, edit))
+                send(ticketId, edit);
+        });
+    }
+
+    public long getEditsRequested() {
+        return editsRequested.sum();
+    }
+
+    public long getEditsCoalesced() {
+        return editsCoalesced.sum();
+    }
+
+    public long getEditsSkipped() {
+        return editsSkipped.sum();
+    }
 
-        return channel.editMessageById(messageId, MessageEditData.fromEmbeds(embed));
+    public long getEditsSent() {
+        return editsSent.sum();
     }
 }
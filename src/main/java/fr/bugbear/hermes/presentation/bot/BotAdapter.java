@@ -7,7 +7,6 @@ package fr.bugbear.hermes.presentation.bot;
 
 import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.domain.service.DiscordService;
-import io.quarkus.arc.Arc;
 import jakarta.annotation.Nonnull;
 import lombok.val;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
@@ -19,6 +18,7 @@ import net.dv8tion.jda.api.events.channel.GenericChannelEvent;
 import net.dv8tion.jda.api.events.channel.update.ChannelUpdateAppliedTagsEvent;
 import net.dv8tion.jda.api.events.channel.update.ChannelUpdateArchivedEvent;
 import net.dv8tion.jda.api.events.channel.update.ChannelUpdateNameEvent;
+import net.dv8tion.jda.api.events.guild.GuildAuditLogEntryCreateEvent;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.CommandAutoCompleteInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
@@ -32,9 +32,11 @@ import java.util.function.Consumer;
 
 public class BotAdapter extends ListenerAdapter implements Logged {
     private final DiscordService discordService;
+    private final BotEventDispatcher dispatcher;
 
-    public BotAdapter(DiscordService discordService) {
+    public BotAdapter(DiscordService discordService, BotEventDispatcher dispatcher) {
         this.discordService = discordService;
+        this.dispatcher = dispatcher;
     }
 
     private void actionOnForumThread(GenericChannelEvent event, Consumer<ThreadChannel> action) {
@@ -42,7 +44,7 @@ public class BotAdapter extends ListenerAdapter implements Logged {
             val threadChannel = event.getChannel().asThreadChannel();
             // check that the thread parent is a forum
             if (threadChannel.getParentChannel().getType() == ChannelType.FORUM) {
-                action.accept(threadChannel);
+                dispatcher.dispatch(event, threadChannel.getIdLong(), () -> action.accept(threadChannel));
             }
         }
     }
@@ -52,7 +54,7 @@ public class BotAdapter extends ListenerAdapter implements Logged {
             val threadChannel = event.getChannel().asThreadChannel();
             // check that the thread parent is a forum
             if (threadChannel.getParentChannel().getType() == ChannelType.FORUM) {
-                action.accept(event);
+                dispatcher.dispatch(event, threadChannel.getIdLong(), () -> action.accept(event));
             }
         }
     }
@@ -62,14 +64,11 @@ public class BotAdapter extends ListenerAdapter implements Logged {
     }
 
     @Override public void onReady(@Nonnull ReadyEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
-        discordService.onReady(event);
-        Arc.container().requestContext().deactivate();
+        dispatcher.dispatch(event, () -> discordService.onReady(event));
     }
 
     @Override public void onMessageReceived(@NotNull MessageReceivedEvent event) {
-        Arc.container().requestContext().activate();
         if (event.getAuthor().isBot())
             return;
         if (event.isFromThread()) {
@@ -77,73 +76,66 @@ public class BotAdapter extends ListenerAdapter implements Logged {
             // check that the thread parent is a forum
             if (threadChannel.getParentChannel().getType() == ChannelType.FORUM) {
                 logEvent(event);
-                discordService.onThreadMessage(threadChannel, event.getMember());
+                dispatcher.dispatch(event,
+                                    threadChannel.getIdLong(),
+                                    () -> discordService.onThreadMessage(threadChannel, event.getMember()));
             }
         }
-        Arc.container().requestContext().deactivate();
     }
 
     @Override public void onChannelCreate(@NotNull ChannelCreateEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
         actionOnForumThread(event, discordService::onThreadCreate);
-        Arc.container().requestContext().deactivate();
     }
 
     @Override public void onChannelUpdateArchived(@NotNull ChannelUpdateArchivedEvent event) {
         // NOTE: locking thread will automatically archive it
-        Arc.container().requestContext().activate();
         logEvent(event);
         actionOnForumThreadWithEvent(event, discordService::onTicketArchivedOrLocked);
-        Arc.container().requestContext().deactivate();
+    }
+
+    @Override public void onGuildAuditLogEntryCreate(@NotNull GuildAuditLogEntryCreateEvent event) {
+        // only fills an in memory buffer, no need to leave the gateway thread
+        discordService.onAuditLogEntry(event);
     }
 
     @Override public void onChannelUpdateAppliedTags(@NotNull ChannelUpdateAppliedTagsEvent event) {
-        Arc.container().requestContext().activate();
         actionOnForumThreadWithEvent(event, discordService::onTagsChange);
-        Arc.container().requestContext().deactivate();
     }
 
     @Override public void onChannelUpdateName(@NotNull ChannelUpdateNameEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
         actionOnForumThreadWithEvent(event, discordService::onTicketRenamed);
-        Arc.container().requestContext().deactivate();
     }
 
     @Override public void onChannelDelete(@NotNull ChannelDeleteEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
         actionOnForumThread(event, discordService::onThreadDelete);
-        Arc.container().requestContext().deactivate();
-
     }
 
     @Override public void onSlashCommandInteraction(@NotNull SlashCommandInteractionEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
-        discordService.onSlashCommand(event);
-        Arc.container().requestContext().deactivate();
+        // commands like /close or /rename update the ticket of the channel they are used in
+        dispatcher.dispatch(event, event.getChannel().getIdLong(), () -> discordService.onSlashCommand(event));
     }
 
     @Override public void onCommandAutoCompleteInteraction(CommandAutoCompleteInteractionEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
-        discordService.onCommandAutoComplete(event);
-        Arc.container().requestContext().deactivate();
+        dispatcher.dispatch(event,
+                            event.getChannel().getIdLong(),
+                            () -> discordService.onCommandAutoComplete(event));
     }
 
     @Override
     public void onModalInteraction(@Nonnull ModalInteractionEvent event) {
-        Arc.container().requestContext().activate();
-        discordService.onModalInteraction(event);
-        Arc.container().requestContext().deactivate();
+        dispatcher.dispatch(event, event.getChannel().getIdLong(), () -> discordService.onModalInteraction(event));
     }
 
     @Override public void onButtonInteraction(@NotNull ButtonInteractionEvent event) {
-        Arc.container().requestContext().activate();
         logEvent(event);
-        discordService.onButtonInteraction(event);
-        Arc.container().requestContext().deactivate();
+        // buttons may act on a ticket from another channel (reopen from a DM), ordered after the events of its thread
+        dispatcher.dispatch(event,
+                            discordService.getButtonOrderingKey(event),
+                            () -> discordService.onButtonInteraction(event));
     }
 }
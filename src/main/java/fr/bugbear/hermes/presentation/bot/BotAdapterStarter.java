@@ -7,38 +7,107 @@ package fr.bugbear.hermes.presentation.bot;
 
 import fr.bugbear.hermes.Logged;
 import fr.bugbear.hermes.domain.service.DiscordService;
+import fr.bugbear.hermes.domain.service.MemberCacheService;
+import fr.bugbear.hermes.domain.service.ParticipationBuffer;
+import fr.bugbear.hermes.domain.service.RestScheduler;
+import io.opentelemetry.api.trace.Tracer;
+import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.Startup;
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import lombok.SneakyThrows;
+import lombok.val;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
 import net.dv8tion.jda.api.requests.GatewayIntent;
-import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.requests.RestConfig;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
 import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.util.concurrent.TimeUnit;
+
 @ApplicationScoped
 @Startup
 public class BotAdapterStarter implements Logged {
 
     public static JDA client;
     @Inject DiscordService discordService;
+    @Inject MemberCacheService memberCacheService;
+    @Inject RestScheduler restScheduler;
+    @Inject ParticipationBuffer participationBuffer;
+    @Inject Tracer tracer;
     @ConfigProperty(name = "discord.client.token") String token;
+    @ConfigProperty(name = "discord.events.async.enabled", defaultValue = "false") boolean asyncEvents;
+    @ConfigProperty(name = "discord.events.async.max-concurrency", defaultValue = "64") int maxConcurrency;
+    @ConfigProperty(name = "discord.member-cache.mode", defaultValue = "ALL") MemberCacheService.Mode memberCacheMode;
+
+    private BotEventDispatcher dispatcher;
 
     @SneakyThrows @PostConstruct void postConstruct() {
-        var botAdapter = new BotAdapter(discordService);
+        if (asyncEvents) {
+            logger().info("Events are handled on virtual threads (max concurrency: {})", maxConcurrency);
+            dispatcher = BotEventDispatcher.virtualThreads(maxConcurrency, tracer);
+        } else {
+            dispatcher = BotEventDispatcher.inline(tracer);
+        }
+        var botAdapter = new BotAdapter(discordService, dispatcher);
+        val start = System.nanoTime();
+        // only the members allowed by the cache policy are loaded, the other ones are retrieved when needed
+        val chunkingFilter = memberCacheMode == MemberCacheService.Mode.ALL ? ChunkingFilter.ALL : ChunkingFilter.NONE;
         var builder = JDABuilder.createDefault(token)
-                                .setMemberCachePolicy(MemberCachePolicy.ALL)
+                                .setMemberCachePolicy(memberCacheService.policy(memberCacheMode))
+                                .setChunkingFilter(chunkingFilter)
+                                // REST calls are sent by priority, see RestScheduler
+                                .setRestConfig(new RestConfig().setRateLimiterFactory(restScheduler::rateLimiter))
                                 .enableIntents(GatewayIntent.GUILD_MESSAGES,
                                                GatewayIntent.GUILD_MEMBERS,
                                                GatewayIntent.DIRECT_MESSAGES,
+                                               GatewayIntent.GUILD_MODERATION,
                                                GatewayIntent.MESSAGE_CONTENT)
+                                // voice states, emojis, stickers and scheduled events are never read
+                                .disableIntents(GatewayIntent.GUILD_VOICE_STATES,
+                                                GatewayIntent.GUILD_EMOJIS_AND_STICKERS,
+                                                GatewayIntent.SCHEDULED_EVENTS)
+                                .disableCache(CacheFlag.VOICE_STATE,
+                                              CacheFlag.EMOJI,
+                                              CacheFlag.STICKER,
+                                              CacheFlag.SCHEDULED_EVENTS)
                                 .enableCache(CacheFlag.MEMBER_OVERRIDES, CacheFlag.FORUM_TAGS)
-                                .addEventListeners(botAdapter);
+                                .addEventListeners(botAdapter, readyTimer(start));
 
         BotAdapterStarter.client = builder.build();
 
     }
+
+    private EventListener readyTimer(long start) {
+        return event -> {
+            if (!(event instanceof ReadyEvent))
+                return;
+            val runtime = Runtime.getRuntime();
+            val cachedMembers = event.getJDA().getGuildCache().stream()
+                                     .mapToLong(guild -> guild.getMemberCache().size())
+                                     .sum();
+            logger().info("Ready in {} ms with member cache mode {} ({} members cached, {} MiB of heap used)",
+                          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                          memberCacheMode,
+                          cachedMembers,
+                          (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+        };
+    }
+
+    @SneakyThrows void onStop(@Observes ShutdownEvent event) {
+        // the queued handlers still need the client
+        dispatcher.shutdown();
+        // in inline mode, the handlers run on the client threads
+        client.shutdown();
+        if (!client.awaitShutdown(10, TimeUnit.SECONDS))
+            logger().warn("The client was still running at shutdown");
+        // no handler can register a participation anymore
+        participationBuffer.drain();
+    }
 }
\ No newline at end of file
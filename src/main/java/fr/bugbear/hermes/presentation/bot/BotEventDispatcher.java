@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.presentation.bot;
+
+import fr.bugbear.hermes.Logged;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.quarkus.arc.Arc;
+import lombok.val;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.events.Event;
+import net.dv8tion.jda.api.events.channel.GenericChannelEvent;
+import net.dv8tion.jda.api.events.guild.GenericGuildEvent;
+import net.dv8tion.jda.api.events.interaction.GenericInteractionCreateEvent;
+import net.dv8tion.jda.api.events.message.GenericMessageEvent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static fr.bugbear.hermes.utils.Tracing.CHANNEL_ID;
+import static fr.bugbear.hermes.utils.Tracing.GUILD_ID;
+
+/**
+ * Runs the {@link BotAdapter} handlers, either inline on the JDA event thread or on virtual threads.
+ * <p>
+ * Every handler runs inside its own CDI request context, activated on the thread that executes it. In async mode,
+ * handlers dispatched with a key (the ticket thread or channel ID) are run in order for that key, so that the events
+ * of a single ticket can't race each other. Each handler runs in a root span named after its event, parent of the
+ * spans of the services, queries and REST calls it makes.
+ */
+public class BotEventDispatcher implements Logged {
+
+    /**
+     * Executor used in async mode, {@code null} when handlers run inline
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Limits the number of handlers running at the same time in async mode
+     */
+    private final Semaphore permits;
+
+    /**
+     * Per channel mailboxes used in async mode, {@code null} when handlers run inline
+     */
+    private final KeyedSerialExecutor mailboxes;
+
+    private final Tracer tracer;
+
+    /**
+     * Set once the dispatcher is shut down, the events received afterwards are dropped
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Key of the handlers dispatched without channel
+     */
+    private static final long NO_KEY = 0;
+
+    private BotEventDispatcher(ExecutorService executor, Semaphore permits, Tracer tracer) {
+        this.executor = executor;
+        this.permits = permits;
+        this.tracer = tracer;
+        this.mailboxes = executor == null ? null : new KeyedSerialExecutor(executor);
+    }
+
+    /**
+     * Dispatcher running handlers directly on the JDA event thread
+     *
+     * @param tracer
+     *         the tracer of the handler spans
+     *
+     * @return the dispatcher
+     */
+    public static BotEventDispatcher inline(Tracer tracer) {
+        return new BotEventDispatcher(null, null, tracer);
+    }
+
+    /**
+     * Dispatcher running each handler on its own virtual thread
+     *
+     * @param maxConcurrency
+     *         maximum number of handlers running at the same time
+     * @param tracer
+     *         the tracer of the handler spans
+     *
+     * @return the dispatcher
+     */
+    public static BotEventDispatcher virtualThreads(int maxConcurrency, Tracer tracer) {
+        val factory = Thread.ofVirtual().name("hermes-event-", 0).factory();
+        return new BotEventDispatcher(Executors.newThreadPerTaskExecutor(factory),
+                                      new Semaphore(maxConcurrency),
+                                      tracer);
+    }
+
+    /**
+     * Run the handler of an event
+     *
+     * @param event
+     *         the event being handled, used for logging
+     * @param handler
+     *         the handler to run
+     */
+    public void dispatch(Event event, Runnable handler) {
+        if (executor == null) {
+            runInRequestContext(event, NO_KEY, handler);
+            return;
+        }
+        if (isStopped(event))
+            return;
+        executor.execute(() -> runWithPermit(event, NO_KEY, handler));
+    }
+
+    /**
+     * Run the handler of an event after the handlers of the previous events dispatched with the same key
+     *
+     * @param event
+     *         the event being handled, used for logging
+     * @param key
+     *         the ID of the channel the event relates to
+     * @param handler
+     *         the handler to run
+     */
+    public void dispatch(Event event, long key, Runnable handler) {
+        if (executor == null) {
+            // the JDA event thread already handles events one at a time
+            runInRequestContext(event, key, handler);
+            return;
+        }
+        if (isStopped(event))
+            return;
+        mailboxes.execute(key, () -> runWithPermit(event, key, handler));
+    }
+
+    private boolean isStopped(Event event) {
+        if (stopped)
+            logger().warn("Event {} received after shutdown, dropped", event.getClass().getSimpleName());
+        return stopped;
+    }
+
+    private void runWithPermit(Event event, long key, Runnable handler) {
+        // waiting here only parks the virtual thread, the JDA event thread is already released
+        permits.acquireUninterruptibly();
+        try {
+            runInRequestContext(event, key, handler);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void runInRequestContext(Event event, long key, Runnable handler) {
+        val eventName = event.getClass().getSimpleName();
+        val span = tracer.spanBuilder(eventName).setSpanKind(SpanKind.CONSUMER).setNoParent().startSpan();
+        val guild = guildOf(event);
+        if (guild != null)
+            span.setAttribute(GUILD_ID, guild.getIdLong());
+        if (key != NO_KEY)
+            span.setAttribute(CHANNEL_ID, key);
+        val requestContext = Arc.container().requestContext();
+        requestContext.activate();
+        try (val ignored = span.makeCurrent()) {
+            handler.run();
+        } catch (Exception e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR);
+            logger().error("Error while handling event {}", eventName, e);
+        } finally {
+            requestContext.terminate();
+            span.end();
+        }
+    }
+
+    private static Guild guildOf(Event event) {
+        if (event instanceof GenericGuildEvent guildEvent)
+            return guildEvent.getGuild();
+        if (event instanceof GenericChannelEvent channelEvent)
+            return channelEvent.getGuild();
+        if (event instanceof GenericMessageEvent messageEvent && messageEvent.isFromGuild())
+            return messageEvent.getGuild();
+        if (event instanceof GenericInteractionCreateEvent interactionEvent)
+            return interactionEvent.getGuild();
+        return null;
+    }
+
+    /**
+     * Stop accepting events and wait for the queued and running handlers to finish
+     */
+    public void shutdown() {
+        if (executor == null)
+            return;
+        stopped = true;
+        try {
+            // the mailboxes hand their next handler to the executor once the previous one is done, so the executor
+            // must accept tasks until they are empty
+            if (!mailboxes.awaitIdle(10, TimeUnit.SECONDS))
+                logger().warn("{} channels still had queued events at shutdown", mailboxes.activeKeys());
+            executor.shutdown();
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+                logger().warn("Some event handlers were still running at shutdown");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
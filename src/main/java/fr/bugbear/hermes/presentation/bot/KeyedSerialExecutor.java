@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.presentation.bot;
+
+import lombok.val;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Executor running tasks sharing the same key one after the other, in submission order, while tasks with different
+ * keys run in parallel on the underlying executor.
+ * <p>
+ * Each key only keeps a reference to the last submitted task, and the entry is removed as soon as that task is done,
+ * so idle keys (closed tickets, inactive threads) do not use any memory.
+ */
+public class KeyedSerialExecutor {
+
+    private final Executor executor;
+
+    /**
+     * Last task submitted for each key with pending work
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run a task after every task previously submitted with the same key
+     *
+     * @param key
+     *         the key, usually a channel ID
+     * @param task
+     *         the task to run
+     */
+    public void execute(long key, Runnable task) {
+        // compute is atomic per key, so two submissions for the same key can't both see an empty mailbox
+        val tail = tails.compute(key, (k, previous) -> previous == null
+                                                       ? CompletableFuture.runAsync(task, executor)
+                                                       // a failed task must not prevent the next ones from running
+                                                       : previous.exceptionally(e -> null)
+                                                                 .thenRunAsync(task, executor));
+        // only removes the entry if no other task was queued behind this one in the meantime
+        tail.whenComplete((result, error) -> tails.remove(key, tail));
+    }
+
+    /**
+     * Wait for the submitted tasks to finish. The underlying executor must stay open meanwhile, as the next task of a
+     * key is only handed to it once the previous one is done.
+     *
+     * @param timeout
+     *         the maximum time to wait
+     * @param unit
+     *         the unit of the timeout
+     *
+     * @return true if every mailbox is empty, false if the timeout elapsed first
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        val deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tails.isEmpty()) {
+            val remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            try {
+                // tasks submitted meanwhile are waited for by the next round
+                CompletableFuture.allOf(tails.values().toArray(CompletableFuture[]::new))
+                                 .exceptionally(e -> null)
+                                 .get(remaining, TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return tails.isEmpty();
+            }
+            // the entries are removed right after their task completes
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of keys with pending or running tasks
+     */
+    public int activeKeys() {
+        return tails.size();
+    }
+}
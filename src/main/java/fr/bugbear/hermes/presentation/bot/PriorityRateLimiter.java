@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.presentation.bot;
+
+import fr.bugbear.hermes.domain.service.RestScheduler;
+import fr.bugbear.hermes.domain.service.RestScheduler.Lane;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import jakarta.annotation.Nonnull;
+import lombok.val;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.requests.RestRateLimiter;
+import net.dv8tion.jda.api.requests.Route;
+import okhttp3.Response;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static fr.bugbear.hermes.utils.Tracing.REST_BUCKET;
+import static fr.bugbear.hermes.utils.Tracing.REST_LANE;
+import static fr.bugbear.hermes.utils.Tracing.REST_STATUS;
+
+/**
+ * Rate limiter sending the requests to the JDA rate limiter by priority.
+ * <p>
+ * Requests wait in the queue of their lane, and are handed to the JDA rate limiter highest lane first, with at most
+ * a given number of requests handed and not executed yet. A request leaves the count once executed, even when
+ * rate limited: JDA retries it in its bucket, and it must not keep the other lanes waiting meanwhile. Interaction
+ * requests, and the requests JDA marks as priority, bypass the queues.
+ * <p>
+ * The rate limit of each bucket is read from the headers of its responses. While a bucket has no request left, its
+ * requests stay in their lane until it resets, instead of waiting in the JDA rate limiter, and the requests of the
+ * other buckets go first. Retries are still handled by the JDA rate limiter.
+ * <p>
+ * Each execution of a request is traced in a span, child of the span current on the thread that issued it.
+ */
+public class PriorityRateLimiter implements RestRateLimiter {
+
+    private static final String BUCKET_HEADER = "X-RateLimit-Bucket";
+    private static final String LIMIT_HEADER = "X-RateLimit-Limit";
+    private static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+    private static final String RESET_AFTER_HEADER = "X-RateLimit-Reset-After";
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+    private static final String GLOBAL_HEADER = "X-RateLimit-Global";
+    /**
+     * Time after which an idle bucket is forgotten
+     */
+    private static final long BUCKET_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final RestRateLimiter delegate;
+    private final RestScheduler scheduler;
+    private final Tracer tracer;
+    private final int maxInFlight;
+
+    /**
+     * Requests waiting for their lane, by route and major parameters, in the order the routes got requests. Guarded
+     * by this.
+     */
+    private final Map<Lane, LinkedHashMap<String, ArrayDeque<TrackedWork>>> queues = new EnumMap<>(Lane.class);
+    /**
+     * Buckets, by hash given by Discord (or route until known) and major parameters. Guarded by this.
+     */
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    /**
+     * Hash of the bucket of each route, as given by Discord. Guarded by this.
+     */
+    private final Map<String, String> routeHashes = new HashMap<>();
+    private final ScheduledExecutorService wakeUps = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("hermes-rest-wake-up").daemon().factory());
+    private int inFlight = 0;
+    private boolean wakeUpScheduled = false;
+    private long wakeUpAt;
+
+    public PriorityRateLimiter(RestRateLimiter delegate, RestScheduler scheduler, Tracer tracer, int maxInFlight) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.tracer = tracer;
+        this.maxInFlight = maxInFlight;
+        for (val lane : Lane.values())
+            queues.put(lane, new LinkedHashMap<>());
+    }
+
+    /**
+     * Rate limit of a bucket, read from the headers of its last response. Guarded by the rate limiter.
+     */
+    private static final class Bucket {
+        private final String id;
+        private String route;
+        private int limit = -1;
+        private int remaining = -1;
+        private long resetAt;
+        /**
+         * Requests handed to the JDA rate limiter and not executed yet
+         */
+        private int pending;
+        private long rateLimited;
+        private long lastUsedAt;
+
+        private Bucket(String id, String route, long now) {
+            this.id = id;
+            this.route = route;
+            this.lastUsedAt = now;
+        }
+
+        private boolean isWindowOpen(long now) {
+            return resetAt - now > 0;
+        }
+
+        private boolean isBackingOff(long now) {
+            return remaining == 0 && isWindowOpen(now);
+        }
+
+        /**
+         * @return the number of requests that can be handed now
+         */
+        private int allowance(long now) {
+            if (remaining >= 0 && isWindowOpen(now))
+                return remaining - pending;
+            // the window reset, or no response was seen yet: one request until the headers are known
+            return (limit > 0 ? limit : 1) - pending;
+        }
+    }
+
+    /**
+     * Rate limit of a bucket, as last reported by Discord
+     *
+     * @param bucket
+     *         hash of the bucket given by Discord, or route until known, and major parameters
+     * @param route
+     *         method and path of the last request of the bucket
+     * @param remaining
+     *         requests left in the window, -1 if unknown
+     * @param resetAfterMillis
+     *         time until the window resets, 0 if it already did
+     * @param pending
+     *         requests handed to the JDA rate limiter and not executed yet
+     * @param rateLimited
+     *         responses rate limited by Discord
+     */
+    public record BucketInfo(String bucket,
+                             String route,
+                             int remaining,
+                             long resetAfterMillis,
+                             int pending,
+                             long rateLimited) {
+    }
+
+    /**
+     * Request handed to the JDA rate limiter, releasing its place once executed
+     */
+    private final class TrackedWork implements Work {
+        private final Work work;
+        private final Lane lane;
+        private final RestScheduler.RouteStats stats;
+        /**
+         * Route and major parameters of the request
+         */
+        private final String routeKey;
+        private final long enqueuedAt = System.nanoTime();
+        /**
+         * Context of the thread that issued the request, executed later on a JDA thread
+         */
+        private final Context parent = Context.current();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        /**
+         * Bucket the request was counted in when handed. Guarded by the rate limiter.
+         */
+        private Bucket bucket;
+
+        private TrackedWork(Work work, Lane lane) {
+            this.work = work;
+            this.lane = lane;
+            this.stats = scheduler.stats(work.getRoute().getBaseRoute());
+            this.routeKey = stats.route() + ":" + work.getRoute().getMajorParameters();
+        }
+
+        private void finish() {
+            if (lane != Lane.INTERACTION && finished.compareAndSet(false, true))
+                release(this);
+        }
+
+        @Nonnull @Override public Route.CompiledRoute getRoute() {
+            return work.getRoute();
+        }
+
+        @Nonnull @Override public JDA getJDA() {
+            return work.getJDA();
+        }
+
+        @Override public Response execute() {
+            val span = tracer.spanBuilder(stats.route())
+                             .setParent(parent)
+                             .setSpanKind(SpanKind.CLIENT)
+                             .setAttribute(REST_LANE, lane.name())
+                             .startSpan();
+            Response response = null;
+            try (val ignored = span.makeCurrent()) {
+                response = work.execute();
+                return response;
+            } finally {
+                val status = response != null ? response.code() : -1;
+                stats.recordResponse(status);
+                if (status >= 0) {
+                    span.setAttribute(REST_STATUS, status);
+                    val hash = response.header(BUCKET_HEADER);
+                    if (hash != null)
+                        span.setAttribute(REST_BUCKET, hash);
+                    if (lane != Lane.INTERACTION)
+                        recordRateLimit(this, response);
+                }
+                if (status < 200 || status >= 400)
+                    span.setStatus(StatusCode.ERROR);
+                span.end();
+                // a rate limited request is retried by JDA, without holding a place meanwhile
+                finish();
+            }
+        }
+
+        @Override public boolean isSkipped() {
+            val skipped = work.isSkipped();
+            if (skipped)
+                finish();
+            return skipped;
+        }
+
+        @Override public boolean isDone() {
+            return work.isDone();
+        }
+
+        @Override public boolean isPriority() {
+            return work.isPriority();
+        }
+
+        @Override public boolean isCancelled() {
+            return work.isCancelled();
+        }
+
+        @Override public void cancel() {
+            work.cancel();
+        }
+    }
+
+    private Lane laneOf(Work work) {
+        val route = work.getRoute().getBaseRoute().getRoute();
+        if (work.isPriority() || route.startsWith("interactions/") || route.contains("{interaction_token}"))
+            return Lane.INTERACTION;
+        val lane = scheduler.currentLane();
+        return lane != null ? lane : Lane.REPLY;
+    }
+
+    @Override public void enqueue(@Nonnull Work task) {
+        val lane = laneOf(task);
+        val work = new TrackedWork(task, lane);
+        if (lane == Lane.INTERACTION) {
+            work.stats.record(0);
+            delegate.enqueue(work);
+            return;
+        }
+        work.stats.queued().incrementAndGet();
+        synchronized (this) {
+            queues.get(lane).computeIfAbsent(work.routeKey, key -> new ArrayDeque<>()).add(work);
+        }
+        dispatch();
+    }
+
+    private void release(TrackedWork work) {
+        synchronized (this) {
+            inFlight--;
+            if (work.bucket != null)
+                work.bucket.pending--;
+        }
+        dispatch();
+    }
+
+    /**
+     * Bucket of a request, guarded by this
+     */
+    private Bucket bucketOf(TrackedWork work, long now) {
+        val hash = routeHashes.get(work.stats.route());
+        val majorParameters = work.getRoute().getMajorParameters();
+        val id = (hash != null ? hash : work.stats.route()) + ":" + majorParameters;
+        val bucket = buckets.computeIfAbsent(id, key -> new Bucket(key, work.stats.route(), now));
+        bucket.route = work.stats.route();
+        bucket.lastUsedAt = now;
+        return bucket;
+    }
+
+    /**
+     * Update the bucket of a request from the rate limit headers of its response
+     */
+    private void recordRateLimit(TrackedWork work, Response response) {
+        val hash = response.header(BUCKET_HEADER);
+        val limit = parseInt(response.header(LIMIT_HEADER));
+        val remaining = parseInt(response.header(REMAINING_HEADER));
+        var resetAfter = parseSeconds(response.header(RESET_AFTER_HEADER));
+        val rateLimited = response.code() == 429;
+        if (rateLimited && resetAfter < 0)
+            resetAfter = parseSeconds(response.header(RETRY_AFTER_HEADER));
+        // the global rate limit is not the one of the bucket, JDA waits for it
+        val global = Boolean.parseBoolean(response.header(GLOBAL_HEADER));
+        val now = System.nanoTime();
+        synchronized (this) {
+            if (hash != null)
+                routeHashes.put(work.stats.route(), hash);
+            val bucket = bucketOf(work, now);
+            if (rateLimited)
+                bucket.rateLimited++;
+            if (global)
+                return;
+            if (limit >= 0)
+                bucket.limit = limit;
+            if (remaining >= 0)
+                bucket.remaining = remaining;
+            else if (rateLimited)
+                bucket.remaining = 0;
+            if (resetAfter >= 0)
+                bucket.resetAt = now + resetAfter;
+        }
+    }
+
+    /**
+     * Hand the waiting requests to the JDA rate limiter, highest lane first, while there is room and their bucket
+     * has requests left
+     */
+    private void dispatch() {
+        val ready = new ArrayList<TrackedWork>();
+        synchronized (this) {
+            val now = System.nanoTime();
+            var backingOff = false;
+            var resetAt = 0L;
+            for (val lane : queues.values()) {
+                val routes = lane.values().iterator();
+                while (inFlight < maxInFlight && routes.hasNext()) {
+                    val queue = routes.next();
+                    val bucket = bucketOf(queue.peek(), now);
+                    var allowance = bucket.allowance(now);
+                    while (inFlight < maxInFlight && allowance > 0 && !queue.isEmpty()) {
+                        val work = queue.poll();
+                        work.bucket = bucket;
+                        bucket.pending++;
+                        inFlight++;
+                        allowance--;
+                        ready.add(work);
+                    }
+                    if (queue.isEmpty()) {
+                        routes.remove();
+                    } else if (bucket.isBackingOff(now) && (!backingOff || bucket.resetAt - resetAt < 0)) {
+                        backingOff = true;
+                        resetAt = bucket.resetAt;
+                    }
+                }
+            }
+            // the other requests release their place once executed, a bucket backing off has to be waited for
+            if (backingOff)
+                scheduleWakeUp(resetAt, now);
+        }
+        // outside of the lock, the JDA rate limiter may call back into this one
+        for (val work : ready) {
+            work.stats.queued().decrementAndGet();
+            work.stats.record(System.nanoTime() - work.enqueuedAt);
+            delegate.enqueue(work);
+        }
+    }
+
+    /**
+     * Dispatch again once a bucket resets, guarded by this
+     */
+    private void scheduleWakeUp(long at, long now) {
+        if (wakeUps.isShutdown() || wakeUpScheduled && wakeUpAt - at <= 0)
+            return;
+        wakeUpScheduled = true;
+        wakeUpAt = at;
+        wakeUps.schedule(() -> {
+            synchronized (this) {
+                wakeUpScheduled = false;
+            }
+            dispatch();
+        }, at - now, TimeUnit.NANOSECONDS);
+    }
+
+    @Override public void stop(boolean shutdown, @Nonnull Runnable callback) {
+        // the waiting requests are left to the JDA rate limiter, which knows how to stop them
+        val waiting = new ArrayList<TrackedWork>();
+        synchronized (this) {
+            queues.values().forEach(routes -> {
+                routes.values().forEach(waiting::addAll);
+                routes.clear();
+            });
+        }
+        wakeUps.shutdownNow();
+        waiting.forEach(work -> {
+            work.stats.queued().decrementAndGet();
+            // not counted in flight
+            work.finished.set(true);
+            delegate.enqueue(work);
+        });
+        delegate.stop(shutdown, callback);
+    }
+
+    @Override public boolean isStopped() {
+        return delegate.isStopped();
+    }
+
+    @Override public int cancelRequests() {
+        val cancelled = new ArrayList<TrackedWork>();
+        synchronized (this) {
+            for (val routes : queues.values()) {
+                routes.values().removeIf(queue -> {
+                    queue.removeIf(work -> {
+                        if (work.isPriority())
+                            return false;
+                        cancelled.add(work);
+                        return true;
+                    });
+                    return queue.isEmpty();
+                });
+            }
+        }
+        cancelled.forEach(work -> {
+            work.stats.queued().decrementAndGet();
+            work.cancel();
+        });
+        return cancelled.size() + delegate.cancelRequests();
+    }
+
+    /**
+     * Forget the buckets without request for a while
+     */
+    public synchronized void pruneBuckets() {
+        val now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.pending == 0
+                                            && !bucket.isWindowOpen(now)
+                                            && now - bucket.lastUsedAt > BUCKET_IDLE_NANOS);
+    }
+
+    /**
+     * @return the number of requests waiting, by lane
+     */
+    public synchronized Map<Lane, Integer> getQueuedByLane() {
+        val queued = new EnumMap<Lane, Integer>(Lane.class);
+        queues.forEach((lane, routes) -> queued.put(lane, routes.values().stream().mapToInt(ArrayDeque::size).sum()));
+        return queued;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of buckets without request left until they reset
+     */
+    public synchronized int getBackingOff() {
+        val now = System.nanoTime();
+        return (int) buckets.values().stream().filter(bucket -> bucket.isBackingOff(now)).count();
+    }
+
+    /**
+     * @return the buckets seen and not forgotten yet
+     */
+    public synchronized List<BucketInfo> getBuckets() {
+        val now = System.nanoTime();
+        return buckets.values()
+                      .stream()
+                      .map(bucket -> new BucketInfo(bucket.id,
+                                                    bucket.route,
+                                                    bucket.isWindowOpen(now) ? bucket.remaining : -1,
+                                                    bucket.isWindowOpen(now)
+                                                    ? TimeUnit.NANOSECONDS.toMillis(bucket.resetAt - now)
+                                                    : 0,
+                                                    bucket.pending,
+                                                    bucket.rateLimited))
+                      .toList();
+    }
+
+    private static int parseInt(String header) {
+        if (header == null)
+            return -1;
+        try {
+            return Integer.parseInt(header);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the duration in nanoseconds of a header in seconds, with a fraction, -1 if missing
+     */
+    private static long parseSeconds(String header) {
+        if (header == null)
+            return -1;
+        try {
+            return (long) (Double.parseDouble(header) * 1_000_000_000L);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
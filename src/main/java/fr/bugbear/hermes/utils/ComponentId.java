@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * Encodes and decodes the IDs of buttons and modals, formatted as {@code type-value}, or {@code type-value:key} when
+ * they carry the ordering key of their interaction.
+ * <p>
+ * Types never contain {@code -}, so the type is everything before the first one and the value everything after it,
+ * up to the key, found with a single {@link String#indexOf(int)} instead of a regular expression.
+ */
+public class ComponentId {
+
+    private static final char SEPARATOR = '-';
+    private static final char KEY_SEPARATOR = ':';
+
+    private ComponentId() {
+    }
+
+    public static String encode(String type, Object value) {
+        return type + SEPARATOR + value;
+    }
+
+    /**
+     * Encode a component ID with the key its interactions are ordered by, known without any query when clicked
+     *
+     * @param type
+     *         the type of the component
+     * @param value
+     *         the value of the component
+     * @param key
+     *         the ID of the channel the interactions relate to
+     *
+     * @return the component ID
+     */
+    public static String encode(String type, Object value, long key) {
+        return encode(type, value) + KEY_SEPARATOR + key;
+    }
+
+    /**
+     * Get the type of a component ID
+     *
+     * @param componentId
+     *         the component ID
+     *
+     * @return the type, or the whole ID if it has no value
+     */
+    public static String type(String componentId) {
+        int separator = componentId.indexOf(SEPARATOR);
+        return separator < 0 ? componentId : componentId.substring(0, separator);
+    }
+
+    /**
+     * Get the value of a component ID of a given type
+     *
+     * @param type
+     *         the expected type
+     * @param componentId
+     *         the component ID
+     *
+     * @return the value, if the ID has the expected type and a value
+     */
+    public static Optional<String> value(String type, String componentId) {
+        int length = type.length();
+        if (componentId.length() <= length + 1
+            || componentId.charAt(length) != SEPARATOR
+            || !componentId.startsWith(type))
+            return Optional.empty();
+        int key = componentId.indexOf(KEY_SEPARATOR, length + 1);
+        return Optional.of(componentId.substring(length + 1, key < 0 ? componentId.length() : key));
+    }
+
+    /**
+     * Get the ordering key of a component ID
+     *
+     * @param componentId
+     *         the component ID
+     *
+     * @return the key, if the ID carries one
+     */
+    public static OptionalLong key(String componentId) {
+        int key = componentId.lastIndexOf(KEY_SEPARATOR);
+        if (key < 0)
+            return OptionalLong.empty();
+        try {
+            return OptionalLong.of(Long.parseLong(componentId, key + 1, componentId.length(), 10));
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+
+    public static Optional<Long> decodeLong(String type, String componentId) {
+        return value(type, componentId).map(Long::parseLong);
+    }
+
+    public static Optional<UUID> decodeUUID(String type, String componentId) {
+        return value(type, componentId).map(UUID::fromString);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Reads the history of a channel oldest first, one page at a time.
+ * <p>
+ * The next page is requested as soon as the current one is received, so that it is downloaded while the current
+ * page is consumed. At most two pages are held in memory, whatever the size of the channel.
+ */
+public class HistoryReader {
+
+    /**
+     * Maximum number of messages returned by Discord per history request
+     */
+    public static final int PAGE_SIZE = 100;
+
+    private HistoryReader() {
+    }
+
+    /**
+     * Feed every message of a channel to a consumer, oldest first. Blocks until the whole history is read, so it
+     * should be called from a virtual thread.
+     *
+     * @param channel
+     *         the channel to read
+     * @param consumer
+     *         called for each message, in chronological order
+     *
+     * @return the number of messages read
+     */
+    public static int forEachMessage(MessageChannel channel, Consumer<Message> consumer) {
+        var count = 0;
+        var next = fetchAfter(channel, "0");
+        while (true) {
+            // pages are returned newest first
+            val page = next.join().getRetrievedHistory();
+            if (page.isEmpty())
+                return count;
+            val lastPage = page.size() < PAGE_SIZE;
+            // prefetch the next page while this one is consumed
+            if (!lastPage)
+                next = fetchAfter(channel, page.getFirst().getId());
+            for (val message : page.reversed()) {
+                consumer.accept(message);
+                count++;
+            }
+            if (lastPage)
+                return count;
+        }
+    }
+
+    private static CompletableFuture<MessageHistory> fetchAfter(MessageChannel channel, String messageId) {
+        return channel.getHistoryAfter(messageId, PAGE_SIZE).submit();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from {@code long} to {@code long}, without boxing.
+ * <p>
+ * Keys are stored in a plain {@code long[]} with linear probing, {@code 0} being reserved to mark empty slots (Discord
+ * snowflakes are never {@code 0}). This class is not thread safe.
+ */
+public class LongLongHashMap {
+
+    private static final long EMPTY = 0L;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongLongHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) Math.ceil(expectedSize / LOAD_FACTOR)) - 1) << 1;
+        return Math.max(capacity, 16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slotOf(long key) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public long get(long key, long defaultValue) {
+        if (key == EMPTY)
+            return defaultValue;
+        int slot = slotOf(key);
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(long key) {
+        return key != EMPTY && slotOf(key) >= 0;
+    }
+
+    public void put(long key, long value) {
+        if (key == EMPTY)
+            throw new IllegalArgumentException("Key 0 is reserved");
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeAt)
+            rehash(keys.length << 1);
+    }
+
+    public boolean remove(long key) {
+        if (key == EMPTY)
+            return false;
+        int gap = slotOf(key);
+        if (gap < 0)
+            return false;
+        // backward shift deletion: move up the entries of the probe chain that can fill the gap
+        int slot = (gap + 1) & mask;
+        while (keys[slot] != EMPTY) {
+            int ideal = hash(keys[slot]) & mask;
+            if (((slot - ideal) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        values[gap] = 0L;
+        size--;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == EMPTY)
+                continue;
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, 0L);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return approximate size of the backing arrays, in bytes
+     */
+    public long memoryFootprint() {
+        return (long) keys.length * Long.BYTES * 2;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import fr.bugbear.hermes.data.model.TicketModel;
+import fr.bugbear.hermes.data.model.TraceTicketModel;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import lombok.val;
+
+/**
+ * Attributes of the spans, and helpers to add them to the current span.
+ */
+public class Tracing {
+
+    public static final AttributeKey<Long> GUILD_ID = AttributeKey.longKey("discord.guild.id");
+    public static final AttributeKey<Long> CHANNEL_ID = AttributeKey.longKey("discord.channel.id");
+    public static final AttributeKey<String> REST_LANE = AttributeKey.stringKey("discord.rest.lane");
+    public static final AttributeKey<String> REST_BUCKET = AttributeKey.stringKey("discord.rest.bucket");
+    public static final AttributeKey<Long> REST_STATUS = AttributeKey.longKey("http.response.status_code");
+    public static final AttributeKey<Long> TICKET_ID = AttributeKey.longKey("hermes.ticket.id");
+    public static final AttributeKey<String> TRACE_TICKET_ID = AttributeKey.stringKey("hermes.trace-ticket.id");
+
+    private Tracing() {
+    }
+
+    /**
+     * Add the ticket and its guild to the current span
+     *
+     * @param ticket
+     *         the ticket handled
+     */
+    public static void tagTicket(TicketModel ticket) {
+        val span = Span.current();
+        span.setAttribute(TICKET_ID, ticket.id);
+        if (ticket.guildId != null)
+            span.setAttribute(GUILD_ID, ticket.guildId);
+    }
+
+    /**
+     * Add the trace ticket and its guild to the current span
+     *
+     * @param traceTicket
+     *         the trace ticket handled
+     */
+    public static void tagTraceTicket(TraceTicketModel traceTicket) {
+        val span = Span.current();
+        span.setAttribute(TRACE_TICKET_ID, traceTicket.id.toString());
+        if (traceTicket.guildId != null)
+            span.setAttribute(GUILD_ID, traceTicket.guildId);
+    }
+}
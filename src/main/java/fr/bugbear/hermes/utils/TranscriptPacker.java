@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.utils.TimeFormat;
+
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Packs the lines of a transcript into as few Discord messages as possible.
+ * <p>
+ * Each original message becomes a {@code author (time): text} line, and consecutive lines are greedily appended to
+ * the current chunk until it would exceed {@link Message#MAX_CONTENT_LENGTH}. A line longer than a chunk is split
+ * over several chunks, its header staying on the first one.
+ */
+public class TranscriptPacker {
+
+    private static final int MAX_LENGTH = Message.MAX_CONTENT_LENGTH;
+
+    /**
+     * User and role mentions, {@code <@ID>} and {@code <@&ID>}
+     */
+    private static final Pattern MENTION = Pattern.compile("<@(&?[0-9]+)>");
+
+    private final Consumer<String> onChunk;
+    private final StringBuilder current = new StringBuilder(MAX_LENGTH);
+    private int lines = 0;
+    private int chunks = 0;
+
+    /**
+     * @param onChunk
+     *         called with each chunk once it is full, in order
+     */
+    public TranscriptPacker(Consumer<String> onChunk) {
+        this.onChunk = onChunk;
+    }
+
+    /**
+     * Format a message as a transcript line
+     *
+     * @param message
+     *         the message
+     *
+     * @return the line, mentions escaped to avoid pinging
+     */
+    public static String formatLine(Message message) {
+        return message.getAuthor().getEffectiveName()
+               + " (" + TimeFormat.TIME_LONG.format(message.getTimeCreated()) + "): "
+               + escapeMentions(message.getContentRaw());
+    }
+
+    /**
+     * Replace {@code <@&ID>} and {@code <@ID>} mentions by {@code `<@&ID>`} and {@code `<@ID>`} to avoid pinging
+     *
+     * @param text
+     *         the text
+     *
+     * @return the escaped text, the same instance if it has no mention
+     */
+    public static String escapeMentions(String text) {
+        if (text.indexOf("<@") < 0)
+            return text;
+        return MENTION.matcher(text).replaceAll("`<@$1>`");
+    }
+
+    /**
+     * Add the next message of the transcript, in chronological order
+     *
+     * @param message
+     *         the message
+     */
+    public void add(Message message) {
+        addLine(formatLine(message));
+    }
+
+    public void addLine(String line) {
+        lines++;
+        val separator = current.isEmpty() ? 0 : 1;
+        if (current.length() + separator + line.length() <= MAX_LENGTH) {
+            if (separator == 1)
+                current.append('\n');
+            current.append(line);
+            return;
+        }
+        flush();
+        // the line doesn't fit in an empty chunk either, split it
+        var start = 0;
+        while (line.length() - start > MAX_LENGTH) {
+            emit(line.substring(start, start + MAX_LENGTH));
+            start += MAX_LENGTH;
+        }
+        current.append(line, start, line.length());
+    }
+
+    /**
+     * Emit the last chunk, if not empty
+     */
+    public void flush() {
+        if (current.isEmpty())
+            return;
+        emit(current.toString());
+        current.setLength(0);
+    }
+
+    private void emit(String chunk) {
+        chunks++;
+        onChunk.accept(chunk);
+    }
+
+    public int getLines() {
+        return lines;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * Renders the messages of a transcript as JSON lines, written to the output as they are added.
+ * <p>
+ * Nothing is kept once a line is written, so the memory used doesn't depend on the size of the transcript.
+ */
+public class TranscriptWriter {
+
+    private final OutputStream output;
+    private int lines = 0;
+
+    /**
+     * @param output
+     *         the stream the lines are written to, not closed by the writer
+     */
+    public TranscriptWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Add the next message of the transcript, in chronological order
+     *
+     * @param message
+     *         the message
+     */
+    public void add(Message message) {
+        addLine(message.getId(),
+                message.getAuthor().getId(),
+                message.getAuthor().getEffectiveName(),
+                message.getTimeCreated(),
+                message.getTimeEdited(),
+                message.getContentRaw(),
+                message.getAttachments().stream().map(Message.Attachment::getUrl).toList());
+    }
+
+    public void addLine(String id,
+                        String authorId,
+                        String author,
+                        OffsetDateTime timestamp,
+                        OffsetDateTime editedTimestamp,
+                        String content,
+                        List<String> attachmentUrls) {
+        val attachments = DataArray.empty();
+        attachmentUrls.forEach(attachments::add);
+        val line = DataObject.empty()
+                             .put("id", id)
+                             .put("author_id", authorId)
+                             .put("author", author)
+                             .put("timestamp", timestamp.toString())
+                             .put("edited_timestamp", editedTimestamp == null ? null : editedTimestamp.toString())
+                             .put("content", content)
+                             .put("attachments", attachments);
+        try {
+            output.write(line.toJson());
+            output.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lines++;
+    }
+
+    public int getLines() {
+        return lines;
+    }
+}
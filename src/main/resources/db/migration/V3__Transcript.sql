@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+create table transcript
+(
+    id              bigserial primary key,
+    ticket_id       bigint
+        constraint fk_transcript_ticket
+            references ticket,
+    trace_ticket_id uuid
+        constraint fk_transcript_trace_ticket
+            references trace_ticket,
+    guild_id        bigint,
+    channel_id      bigint,
+    name            varchar(255),
+    closed_at       timestamp(6) with time zone,
+    message_count   integer
+);
+
+create index transcript_guild_id_idx on transcript (guild_id);
+
+
+create table transcript_message
+(
+    transcript_id bigint not null
+        constraint fk_transcript_message_transcript
+            references transcript,
+    message_id    bigint not null,
+    author_id     bigint,
+    author_name   varchar(255),
+    created_at    timestamp(6) with time zone,
+    content       text compression lz4,
+    search_vector tsvector generated always as (to_tsvector('simple', coalesce(author_name, '') || ' ' ||
+                                                                       coalesce(content, ''))) stored,
+    primary key (transcript_id, message_id)
+);
+
+create index transcript_message_search_idx on transcript_message using gin (search_vector);
@@ -0,0 +1,11 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+create table command_sync
+(
+    scope      varchar(255) not null primary key,
+    hash       varchar(64),
+    updated_at timestamp(6) with time zone
+);
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+/*
+ * Lookups done on every Discord event. The indexes are unique, unless the existing rows already have duplicates, in
+ * which case a plain index is created so that the migration doesn't block the startup.
+ */
+do
+$$
+    begin
+        if exists(select thread_id from ticket where thread_id is not null group by thread_id having count(*) > 1) then
+            raise notice 'ticket.thread_id has duplicates, creating a non unique index';
+            create index ticket_thread_id_idx on ticket (thread_id);
+        else
+            create unique index ticket_thread_id_idx on ticket (thread_id);
+        end if;
+
+        if exists(select channel_id
+                  from trace_ticket
+                  where channel_id is not null
+                  group by channel_id
+                  having count(*) > 1) then
+            raise notice 'trace_ticket.channel_id has duplicates, creating a non unique index';
+            create index trace_ticket_channel_id_idx on trace_ticket (channel_id);
+        else
+            create unique index trace_ticket_channel_id_idx on trace_ticket (channel_id);
+        end if;
+
+        if exists(select channel_id from forum where channel_id is not null group by channel_id having count(*) > 1) then
+            raise notice 'forum.channel_id has duplicates, creating a non unique index';
+            create index forum_channel_id_idx on forum (channel_id);
+        else
+            create unique index forum_channel_id_idx on forum (channel_id);
+        end if;
+    end
+$$;
+
+-- a tag has several configurations, one per validity window
+create index trace_config_guild_id_tag_idx on trace_config (guild_id, tag);
+
+-- open tickets, read by the reminder by keyset on (forum_id, created_at, id) and by the startup reconciliation
+create index ticket_active_forum_id_created_at_id_idx on ticket (forum_id, created_at, id)
+    where status in ('OPEN', 'IN_PROGRESS');
+
+-- foreign keys, used to load the collections and associations
+create index ticket_forum_id_idx on ticket (forum_id);
+create index ticket_tags_ticket_id_idx on ticket_tags (ticket_id);
+create index ticket_participant_ticket_id_idx on ticket_participant (ticket_id);
+create index trace_ticket_trace_config_id_idx on trace_ticket (trace_config_id);
+create index practical_tag_forum_id_idx on practical_tag (forum_id);
+create index manager_roles_manager_id_idx on manager_roles (manager_id);
+create index manager_users_manager_id_idx on manager_users (manager_id);
+create index forum_has_manager_manager_id_idx on forum_has_manager (manager_id);
+create index trace_config_has_manager_trace_config_id_idx on trace_config_has_manager (trace_config_id);
+create index trace_ticket_configuration_roles_config_id_idx
+    on trace_ticket_configuration_roles (trace_ticket_configuration_id);
+create index trace_ticket_configuration_users_config_id_idx
+    on trace_ticket_configuration_users (trace_ticket_configuration_id);
+create index transcript_ticket_id_idx on transcript (ticket_id);
+create index transcript_trace_ticket_id_idx on transcript (trace_ticket_id);
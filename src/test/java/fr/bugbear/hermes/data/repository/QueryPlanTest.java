@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.data.repository;
+
+import lombok.val;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Plans of the queries of the repositories on a database seeded at production volumes.
+ * <p>
+ * The schema is migrated by Flyway, then filled with a million tickets and their participants and tags, and with
+ * transcripts and trace tickets. Each test explains the SQL of a repository query, the equivalent of what Hibernate
+ * generates for the HQL ones, and fails if it reads a large table sequentially. {@code streamLiveThreadIds} is not
+ * checked: it reads every live ticket at startup, a sequential scan being its best plan.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class QueryPlanTest {
+
+    private static final Pattern SEQ_SCAN_ON_LARGE_TABLE = Pattern.compile(
+            "Seq Scan on (ticket|ticket_participant|ticket_tags|trace_ticket|transcript|transcript_message)(\\s|$)",
+            Pattern.MULTILINE);
+
+    private static final long GUILD_ID = 400_000_000_000_000_000L;
+    /**
+     * {@code md5('forum-1')::uuid}, the first forum of the seed
+     */
+    private static final UUID FORUM_ID = UUID.fromString("e8ad8fa8-d96c-4b59-5854-eecd4ba98668");
+
+    @Container
+    private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:14");
+
+    private static final String SEED = """
+            insert into forum (id, channel_id, webhook_channel_id, name)
+            select md5('forum-' || i)::uuid, 100000000000000000 + i, 110000000000000000 + i, 'forum-' || i
+            from generate_series(1, 50) i;
+
+            insert into ticket (created_at, created_by, guild_id, thread_id, forum_id, name, status, reopened_times,
+                                updated_at)
+            select now() - (1000000 - i) * interval '1 minute',
+                   300000000000000000 + i % 50000,
+                   400000000000000000 + i % 5,
+                   500000000000000000 + i,
+                   md5('forum-' || (1 + i % 50))::uuid,
+                   'ticket-' || i,
+                   -- the active tickets are the most recent ones, some deleted threads among the old ones
+                   case
+                       when i > 980000 then 'OPEN'
+                       when i > 970000 then 'IN_PROGRESS'
+                       when i % 100 < 7 then 'DELETED'
+                       else 'CLOSED' end,
+                   0,
+                   now()
+            from generate_series(1, 1000000) i;
+
+            insert into ticket_participant (id, taken_at, user_id, ticket_id)
+            select gen_random_uuid(), now(), 300000000000000000 + (i * 7) % 50000, 1 + i % 1000000
+            from generate_series(1, 1500000) i;
+
+            insert into ticket_tags (ticket_id, tags)
+            select 1 + i % 1000000, 'tag-' || i % 40
+            from generate_series(1, 1000000) i;
+
+            insert into trace_config (id, guild_id, tag, from_date_time, end_date_time)
+            select md5('trace-config-' || i)::uuid,
+                   400000000000000000 + i % 5,
+                   'tag-' || i % 40,
+                   now() - interval '2 years' + i * interval '1 day',
+                   now() - interval '2 years' + (i + 7) * interval '1 day'
+            from generate_series(1, 750) i;
+
+            insert into trace_ticket (id, channel_id, created_by, created_at, guild_id, trace_config_id)
+            select gen_random_uuid(),
+                   600000000000000000 + i,
+                   300000000000000000 + i % 50000,
+                   now() - (i % 17520) * interval '1 hour',
+                   400000000000000000 + i % 5,
+                   md5('trace-config-' || (1 + i % 750))::uuid
+            from generate_series(1, 100000) i;
+
+            insert into transcript (ticket_id, guild_id, channel_id, name, closed_at, message_count)
+            select i * 20, 400000000000000000 + i % 5, 500000000000000000 + i * 20, 'ticket-' || i * 20, now(), 10
+            from generate_series(1, 50000) i;
+
+            insert into transcript_message (transcript_id, message_id, author_id, author_name, created_at, content)
+            select 1 + i % 50000,
+                   700000000000000000 + i,
+                   300000000000000000 + i % 50000,
+                   'student-' || i % 50000,
+                   now(),
+                   'segfault in ' || (array ['malloc', 'valgrind', 'makefile', 'moulinette', 'pointer'])[1 + i % 5]
+                       || ' on test ' || i
+            from generate_series(1, 500000) i;
+
+            analyze;
+            """;
+
+    @BeforeAll
+    static void migrateAndSeed() throws SQLException {
+        Flyway.configure()
+              .dataSource(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword())
+              .load()
+              .migrate();
+        try (val connection = connect(); val statement = connection.createStatement()) {
+            statement.execute(SEED);
+        }
+    }
+
+    @Test
+    void findByThread() throws SQLException {
+        assertNoSeqScan("select * from ticket where thread_id = ?", 500_000_000_000_500_000L);
+    }
+
+    @Test
+    void findActiveTicketOwners() throws SQLException {
+        assertNoSeqScan("select created_by from ticket where status in ('OPEN', 'IN_PROGRESS')"
+                        + " and created_by is not null");
+    }
+
+    @Test
+    void findActiveTickets() throws SQLException {
+        assertNoSeqScan("select t.id, t.thread_id, t.created_by, f.channel_id from ticket t"
+                        + " join forum f on f.id = t.forum_id"
+                        + " where t.status in ('OPEN', 'IN_PROGRESS') and t.thread_id is not null"
+                        + " and f.channel_id is not null");
+    }
+
+    @Test
+    void countActiveTickets() throws SQLException {
+        assertNoSeqScan("select f.name, t.status, count(t.id) from ticket t join forum f on f.id = t.forum_id"
+                        + " where t.status in ('OPEN', 'IN_PROGRESS') group by f.name, t.status");
+    }
+
+    @Test
+    void closeAll() throws SQLException {
+        assertNoSeqScan("update ticket set status = 'CLOSED', closed_at = now(), updated_at = now()"
+                        + " where id in (?, ?, ?)", 10L, 20L, 30L);
+    }
+
+    @Test
+    void countOpenTicketsByForum() throws SQLException {
+        assertNoSeqScan("select forum_id, count(id) from ticket where status = 'OPEN' and created_at < ?"
+                        + " and guild_id is not null and thread_id is not null group by forum_id",
+                        OffsetDateTime.now().minusDays(7));
+    }
+
+    @Test
+    void findOpenTicketsCreatedBeforeFirstPage() throws SQLException {
+        assertNoSeqScan(openTicketsPage("") + " limit 100", OffsetDateTime.now().minusDays(7));
+    }
+
+    @Test
+    void findOpenTicketsCreatedBeforeNextPage() throws SQLException {
+        val createdBefore = OffsetDateTime.now().minusDays(7);
+        assertNoSeqScan(openTicketsPage(" and (t.forum_id, t.created_at, t.id) > (?, ?, ?)") + " limit 100",
+                        createdBefore,
+                        FORUM_ID,
+                        createdBefore.minusMonths(6),
+                        123_456L);
+    }
+
+    @Test
+    void findUserIdsByTickets() throws SQLException {
+        assertNoSeqScan("select ticket_id, user_id from ticket_participant where ticket_id in (?, ?, ?)",
+                        10L, 20L, 30L);
+    }
+
+    @Test
+    void ticketTags() throws SQLException {
+        // the tags are loaded with the ticket
+        assertNoSeqScan("select ticket_id, tags from ticket_tags where ticket_id = ?", 500_000L);
+    }
+
+    @Test
+    void findTraceTicketByChannel() throws SQLException {
+        assertNoSeqScan("select * from trace_ticket where channel_id = ?", 600_000_000_000_050_000L);
+    }
+
+    @Test
+    void findNotEndedTraceConfigs() throws SQLException {
+        assertNoSeqScan("select c.*, m.* from trace_config c"
+                        + " left join trace_config_has_manager h on h.trace_config_id = c.id"
+                        + " left join manager m on m.id = h.manager_id"
+                        + " where c.end_date_time > ?", OffsetDateTime.now());
+    }
+
+    @Test
+    void findForumByChannel() throws SQLException {
+        assertNoSeqScan("select * from forum where channel_id = ?", 100_000_000_000_000_001L);
+    }
+
+    @Test
+    void searchTranscripts() throws SQLException {
+        assertNoSeqScan(TranscriptRepository.SEARCH, "valgrind moulinette", GUILD_ID, 25);
+    }
+
+    private static String openTicketsPage(String keyset) {
+        return "select t.id, t.guild_id, t.thread_id, t.created_at, f.id, f.name, f.webhook_channel_id"
+               + " from ticket t join forum f on f.id = t.forum_id"
+               + " where t.status = 'OPEN' and t.created_at < ?"
+               + " and t.guild_id is not null and t.thread_id is not null" + keyset
+               + " order by t.forum_id, t.created_at, t.id";
+    }
+
+    private static void assertNoSeqScan(String sql, Object... parameters) throws SQLException {
+        val plan = explain(sql, parameters);
+        assertFalse(SEQ_SCAN_ON_LARGE_TABLE.matcher(plan).find(), () -> "Sequential scan in the plan of\n" + sql
+                                                                         + "\n\n" + plan);
+    }
+
+    private static String explain(String sql, Object... parameters) throws SQLException {
+        try (val connection = connect(); val statement = connection.prepareStatement("explain " + sql)) {
+            for (int i = 0; i < parameters.length; i++)
+                statement.setObject(i + 1, parameters[i]);
+            val plan = new StringBuilder();
+            try (val results = statement.executeQuery()) {
+                while (results.next())
+                    plan.append(results.getString(1)).append('\n');
+            }
+            return plan.toString();
+        }
+    }
+
+    private static Connection connect() throws SQLException {
+        return DriverManager.getConnection(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+    }
+}
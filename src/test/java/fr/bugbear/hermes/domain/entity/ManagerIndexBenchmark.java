@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.entity;
+
+import fr.bugbear.hermes.data.model.ManagerModel;
+import lombok.val;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.internal.JDAImpl;
+import net.dv8tion.jda.internal.entities.RoleImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Resolution of the manager of a member, compiled index against the nested streams it replaced.
+ * <p>
+ * The guild has {@code guildRoles} roles and {@code managers} managers, each declaring a few roles and users. The
+ * member is either not a manager, the worst case of the streams as every manager is visited, or matches the last
+ * manager through one of its roles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManagerIndexBenchmark {
+
+    private static final int ROLES_PER_MANAGER = 4;
+    private static final int USERS_PER_MANAGER = 3;
+
+    @Param({"300"}) int guildRoles;
+    @Param({"12", "48"}) int managers;
+    @Param({"5", "30"}) int memberRoles;
+    @Param({"false", "true"}) boolean isManager;
+
+    private List<ManagerModel> managerModels;
+    private ManagerIndex index;
+    private Member member;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        val random = new Random(42);
+        val guild = mock(Guild.class);
+        when(guild.getJDA()).thenReturn(mock(JDAImpl.class));
+        val roles = new ArrayList<Role>();
+        for (int i = 0; i < guildRoles; i++)
+            roles.add(new RoleImpl(1_000_000L + i, guild));
+
+        managerModels = new ArrayList<>();
+        for (int i = 0; i < managers; i++) {
+            val managerRoles = new ArrayList<Long>();
+            for (int j = 0; j < ROLES_PER_MANAGER; j++)
+                managerRoles.add(roles.get(random.nextInt(guildRoles / 2)).getIdLong());
+            val managerUsers = new ArrayList<Long>();
+            for (int j = 0; j < USERS_PER_MANAGER; j++)
+                managerUsers.add(2_000_000L + i * USERS_PER_MANAGER + j);
+            managerModels.add(new ManagerModel().withId(UUID.randomUUID())
+                                                .withName("manager-" + i)
+                                                .withRoles(managerRoles)
+                                                .withUsers(managerUsers));
+        }
+        index = ManagerIndex.compile(managerModels);
+
+        // the roles of the member are never declared by a manager, except the one of the last manager if matching
+        val rolesOfMember = new ArrayList<Role>();
+        for (int i = 0; i < memberRoles; i++)
+            rolesOfMember.add(roles.get(guildRoles / 2 + random.nextInt(guildRoles / 2)));
+        if (isManager) {
+            val lastManagerRole = managerModels.getLast().roles.getFirst();
+            rolesOfMember.set(memberRoles - 1, roles.get((int) (lastManagerRole - 1_000_000L)));
+        }
+        member = mock(Member.class, withSettings().stubOnly());
+        when(member.getIdLong()).thenReturn(3_000_000L);
+        when(member.getRoles()).thenReturn(List.copyOf(rolesOfMember));
+    }
+
+    @Benchmark
+    public Optional<ManagerModel> streams() {
+        val userId = member.getIdLong();
+        val userRoles = member.getRoles();
+        return managerModels.stream()
+                            .filter(m -> m.users.contains(userId)
+                                         || m.roles.stream()
+                                                   .anyMatch(role -> userRoles.stream()
+                                                                              .anyMatch(r -> r.getIdLong() == role)))
+                            .findFirst();
+    }
+
+    @Benchmark
+    public Optional<ManagerModel> index() {
+        return index.resolve(member);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.data.model.ForumModel;
+import fr.bugbear.hermes.data.repository.ForumRepository;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ForumServiceTest {
+
+    private static ForumModel forum(String name, Long channelId) {
+        return new ForumModel().withId(UUID.randomUUID())
+                               .withName(name)
+                               .withChannelId(channelId)
+                               .withManagers(Set.of())
+                               .withPracticalTags(List.of());
+    }
+
+    @Test
+    void duplicateChannelKeepsTheFirstForum() {
+        val service = new ForumService();
+        service.forumRepository = mock(ForumRepository.class);
+        when(service.forumRepository.listAll()).thenReturn(List.of(forum("first", 1L),
+                                                                     forum("duplicate", 1L),
+                                                                     forum("other", 2L),
+                                                                     forum("no channel", null)));
+
+        assertEquals(2, service.reload());
+        assertEquals("first", service.getForums().get(1L).name());
+        assertEquals("other", service.getForums().get(2L).name());
+    }
+}
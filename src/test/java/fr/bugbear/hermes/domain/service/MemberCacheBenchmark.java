@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import lombok.val;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+import net.dv8tion.jda.internal.JDAImpl;
+import net.dv8tion.jda.internal.entities.GuildImpl;
+import net.dv8tion.jda.internal.entities.MemberImpl;
+import net.dv8tion.jda.internal.entities.UserImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * READY time and retained heap of the member cache of a synthetic guild, by member cache mode.
+ * <p>
+ * The READY phase loads the members sent by the chunk requests through the cache policy: every member of the guild
+ * with {@link MemberCacheService.Mode#ALL}, none with {@link MemberCacheService.Mode#MINIMAL} as chunking is disabled.
+ * The members are then seen again as they are active (ticket owners and recently active members), and the heap retained
+ * by the cache is printed after each iteration. The gateway latency of the chunk requests is not modelled, only the
+ * work of the client.
+ * <p>
+ * The active members stay under the size of the LRU, so that no member is unloaded through the mocked client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MemberCacheBenchmark {
+
+    private static final long MIB = 1024 * 1024;
+    private static final long SNOWFLAKE_BASE = 200_000_000_000_000_000L;
+
+    @Param({"ALL", "MINIMAL"}) MemberCacheService.Mode mode;
+    @Param({"1000", "10000", "100000"}) int guildMembers;
+    @Param({"200"}) int ticketOwners;
+    @Param({"500"}) int activeMembers;
+
+    private JDAImpl api;
+    private GuildImpl guild;
+    private MemberCachePolicy policy;
+    private TLongObjectMap<Member> memberCache;
+    private long heapBefore;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        api = mock(JDAImpl.class, withSettings().stubOnly());
+        // the cache flags of BotAdapterStarter
+        when(api.getCacheFlags()).thenReturn(EnumSet.of(CacheFlag.MEMBER_OVERRIDES, CacheFlag.FORUM_TAGS));
+        guild = mock(GuildImpl.class, withSettings().stubOnly());
+        when(guild.getIdLong()).thenReturn(SNOWFLAKE_BASE);
+        when(api.getGuildById(SNOWFLAKE_BASE)).thenReturn(guild);
+
+        val memberCacheService = new MemberCacheService();
+        memberCacheService.recentSize = 1000;
+        memberCacheService.forumService = mock(ForumService.class, withSettings().stubOnly());
+        when(memberCacheService.forumService.isManagerOfAnyForum(any())).thenReturn(false);
+        memberCacheService.traceTagIndex = mock(TraceTagIndex.class, withSettings().stubOnly());
+        when(memberCacheService.traceTagIndex.isManagerOfAnyTrace(any())).thenReturn(false);
+        for (int i = 0; i < ticketOwners; i++)
+            memberCacheService.ticketActivated(memberId(i * (guildMembers / ticketOwners)));
+        policy = memberCacheService.policy(mode);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws InterruptedException {
+        memberCache = null;
+        heapBefore = usedHeapAfterGc();
+        memberCache = new TLongObjectHashMap<>();
+    }
+
+    @Benchmark
+    public TLongObjectMap<Member> ready() {
+        if (mode == MemberCacheService.Mode.ALL) {
+            for (int i = 0; i < guildMembers; i++)
+                load(memberId(i));
+        }
+        return memberCache;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws InterruptedException {
+        // members seen after READY, retrieved again from Discord if they were not cached
+        for (int i = 0; i < ticketOwners; i++)
+            load(memberId(i * (guildMembers / ticketOwners)));
+        for (int i = 0; i < activeMembers; i++)
+            load(memberId((i * 7919L) % guildMembers));
+        val retained = usedHeapAfterGc() - heapBefore;
+        System.out.printf("%n%s mode, %d members in the guild: %d cached, %d MiB retained%n",
+                          mode,
+                          guildMembers,
+                          memberCache.size(),
+                          retained / MIB);
+    }
+
+    private void load(long id) {
+        if (memberCache.containsKey(id))
+            return;
+        val member = new MemberImpl(guild, new UserImpl(id, api));
+        if (policy.cacheMember(member))
+            memberCache.put(id, member);
+    }
+
+    private static long memberId(long index) {
+        return SNOWFLAKE_BASE + (index + 1) * 4_194_304L;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        val memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TicketIndexTest {
+
+    private static final long FIRST_THREAD = 1_191_000_000_000_000_000L;
+
+    @Test
+    void countsHitsAndMisses() {
+        val index = new TicketIndex();
+        index.add(FIRST_THREAD, 12);
+
+        assertEquals(12, index.findTicketId(FIRST_THREAD));
+        assertEquals(TicketIndex.NO_TICKET, index.findTicketId(FIRST_THREAD + 1));
+        index.remove(FIRST_THREAD);
+        assertEquals(TicketIndex.NO_TICKET, index.findTicketId(FIRST_THREAD));
+
+        assertEquals(1, index.getHits());
+        assertEquals(2, index.getMisses());
+    }
+}
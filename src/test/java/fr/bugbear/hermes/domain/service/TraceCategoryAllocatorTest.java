@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import lombok.val;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.channel.concrete.Category;
+import net.dv8tion.jda.api.entities.channel.middleman.GuildChannel;
+import net.dv8tion.jda.api.requests.restaction.ChannelAction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static fr.bugbear.hermes.domain.service.TraceCategoryAllocator.MAX_CATEGORY_CHANNELS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Concurrent reservations against a stubbed guild, whose categories are created asynchronously and whose channels
+ * are added to the cache once created, as JDA does.
+ */
+class TraceCategoryAllocatorTest {
+
+    private static final String CATEGORY_NAME = "traces";
+
+    private final List<FakeCategory> categories = new CopyOnWriteArrayList<>();
+    private final AtomicInteger creationsInFlight = new AtomicInteger();
+    private final AtomicInteger maxCreationsInFlight = new AtomicInteger();
+    private final AtomicInteger creations = new AtomicInteger();
+    private final AtomicLong nextId = new AtomicLong(1_000);
+    private final GuildChannel channel = mock(GuildChannel.class);
+
+    private Guild guild;
+    private TraceCategoryAllocator allocator;
+
+    /**
+     * Category of the stubbed guild and its channels
+     */
+    private record FakeCategory(Category category, List<GuildChannel> channels) {
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        allocator = new TraceCategoryAllocator();
+        allocator.categoryName = CATEGORY_NAME;
+        allocator.lowWatermark = 10;
+
+        guild = mock(Guild.class);
+        when(guild.getIdLong()).thenReturn(1L);
+        when(guild.getId()).thenReturn("1");
+        when(guild.getCategoriesByName(eq(CATEGORY_NAME), eq(true)))
+                .thenAnswer(invocation -> categories.stream().map(FakeCategory::category).toList());
+        when(guild.createCategory(anyString())).thenAnswer(invocation -> {
+            ChannelAction<Category> action = mock(ChannelAction.class, RETURNS_SELF);
+            when(action.submit()).thenAnswer(submit -> createCategory());
+            return action;
+        });
+    }
+
+    /**
+     * Create a category after a delay, adding it to the cache before completing like JDA
+     */
+    private CompletableFuture<Category> createCategory() {
+        val inFlight = creationsInFlight.incrementAndGet();
+        maxCreationsInFlight.accumulateAndGet(inFlight, Math::max);
+        creations.incrementAndGet();
+        val fake = new FakeCategory(mock(Category.class), new CopyOnWriteArrayList<>());
+        val id = nextId.getAndIncrement();
+        when(fake.category().getIdLong()).thenReturn(id);
+        when(fake.category().getPosition()).thenReturn((int) id);
+        when(fake.category().getChannels()).thenAnswer(invocation -> List.copyOf(fake.channels()));
+        return CompletableFuture.supplyAsync(() -> {
+            sleep(20);
+            categories.add(fake);
+            creationsInFlight.decrementAndGet();
+            return fake.category();
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 49, 50, 51, 400})
+    void concurrentReservationsNeverOverfillCategories(int requests) throws InterruptedException {
+        val start = new CountDownLatch(1);
+        val errors = new CopyOnWriteArrayList<Throwable>();
+        try (val executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < requests; i++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        val reservation = allocator.reserve(guild, category -> {
+                        });
+                        try {
+                            // the channel creation call
+                            sleep(ThreadLocalRandom.current().nextInt(5));
+                            fakeOf(reservation.category()).channels().add(channel);
+                        } finally {
+                            reservation.release();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+            }
+            start.countDown();
+        }
+
+        assertTrue(errors.isEmpty(), () -> "Reservations failed: " + errors);
+        assertTrue(maxCreationsInFlight.get() <= 1,
+                   () -> maxCreationsInFlight.get() + " categories were created at the same time");
+        val channelsPerCategory = new ArrayList<Integer>();
+        for (val fake : categories)
+            channelsPerCategory.add(fake.channels().size());
+        assertTrue(channelsPerCategory.stream().allMatch(count -> count <= MAX_CATEGORY_CHANNELS),
+                   () -> "Channels per category: " + channelsPerCategory);
+        assertEquals(requests, channelsPerCategory.stream().mapToInt(Integer::intValue).sum());
+    }
+
+    @Test
+    void categoriesAreCreatedOnlyWhenNeeded() throws InterruptedException {
+        val requests = 3 * MAX_CATEGORY_CHANNELS;
+        try (val executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < requests; i++) {
+                executor.execute(() -> {
+                    val reservation = allocator.reserve(guild, category -> {
+                    });
+                    fakeOf(reservation.category()).channels().add(channel);
+                    reservation.release();
+                });
+            }
+        }
+        // wait for a category created ahead, once the last one ran low
+        for (int i = 0; i < 50 && creationsInFlight.get() > 0; i++)
+            sleep(10);
+
+        // the three full categories, plus at most one created ahead
+        assertTrue(creations.get() >= 3 && creations.get() <= 4, () -> creations.get() + " categories created");
+    }
+
+    private FakeCategory fakeOf(Category category) {
+        return categories.stream()
+                         .filter(fake -> fake.category() == category)
+                         .findFirst()
+                         .orElseThrow();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
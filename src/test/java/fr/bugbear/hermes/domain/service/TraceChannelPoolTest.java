@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import lombok.val;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static fr.bugbear.hermes.domain.service.TraceChannelPool.POOL_CHANNEL_NAME;
+import static fr.bugbear.hermes.domain.service.TraceChannelPool.POOL_TOPIC_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TraceChannelPoolTest {
+
+    @Test
+    void unclaimedChannelIsRecognizedByItsTopic() {
+        assertTrue(TraceChannelPool.isPoolChannel(channel(POOL_CHANNEL_NAME, POOL_TOPIC_PREFIX + UUID.randomUUID())));
+    }
+
+    @Test
+    void channelOfAStudentNamedAvailableIsKept() {
+        // "trace-%s" of the login "available"
+        assertFalse(TraceChannelPool.isPoolChannel(channel(POOL_CHANNEL_NAME, null)));
+    }
+
+    @Test
+    void topicWithoutConfigurationIsNotAMarker() {
+        assertFalse(TraceChannelPool.isPoolChannel(channel(POOL_CHANNEL_NAME, POOL_TOPIC_PREFIX)));
+        assertFalse(TraceChannelPool.isPoolChannel(channel(POOL_CHANNEL_NAME, POOL_TOPIC_PREFIX + "not-an-id")));
+        assertFalse(TraceChannelPool.isPoolChannel(channel(POOL_CHANNEL_NAME, "segfault in malloc")));
+    }
+
+    private static TextChannel channel(String name, String topic) {
+        val channel = mock(TextChannel.class);
+        when(channel.getName()).thenReturn(name);
+        when(channel.getTopic()).thenReturn(topic);
+        return channel;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.domain.service;
+
+import fr.bugbear.hermes.data.model.TraceConfigModel;
+import fr.bugbear.hermes.data.repository.TraceConfigRepository;
+import lombok.val;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.internal.JDAImpl;
+import net.dv8tion.jda.internal.entities.RoleImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Latency distribution of the {@code /trace} autocomplete, read from the p99 of the sample time mode.
+ * <p>
+ * The guild has {@code tags} configurations, a third of them upcoming, each allowed to a few of the roles of
+ * the guild. The member has {@code memberRoles} roles, and types an empty query (every tag matches), a prefix, or a
+ * word found in the middle of the tags.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceTagIndexBenchmark {
+
+    private static final long GUILD_ID = 400_000_000_000_000_000L;
+    private static final int GUILD_ROLES = 300;
+    private static final List<String> SUBJECTS = List.of("malloc", "pointers", "threads", "sockets", "shell", "libc");
+
+    @Param({"50", "500", "5000"}) int tags;
+    @Param({"10"}) int memberRoles;
+    @Param({"", "s3-", "thread"}) String query;
+
+    private TraceTagIndex index;
+    private Member member;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        val random = new Random(42);
+        val guild = mock(Guild.class);
+        when(guild.getJDA()).thenReturn(mock(JDAImpl.class));
+        val roles = new ArrayList<Role>();
+        for (int i = 0; i < GUILD_ROLES; i++)
+            roles.add(new RoleImpl(1_000_000L + i, guild));
+
+        val now = ZonedDateTime.now();
+        val configs = new ArrayList<TraceConfigModel>();
+        for (int i = 0; i < tags; i++) {
+            // a third of the windows are not open yet
+            val from = i % 3 == 0 ? now.plusDays(1) : now.minusDays(1);
+            val allowedRoles = new HashSet<Long>();
+            for (int j = 0; j < 3; j++)
+                allowedRoles.add(roles.get(random.nextInt(GUILD_ROLES)).getIdLong());
+            configs.add(new TraceConfigModel().withId(UUID.randomUUID())
+                                              .withGuildId(GUILD_ID)
+                                              .withTag("s%d-%s-%d".formatted(i % 10,
+                                                                             SUBJECTS.get(i % SUBJECTS.size()),
+                                                                             i))
+                                              .withFromDateTime(from)
+                                              .withEndDateTime(from.plusDays(7))
+                                              .withRolesAllowed(allowedRoles)
+                                              .withUsersAllowed(Set.of()));
+        }
+
+        index = new TraceTagIndex();
+        index.traceConfigRepository = mock(TraceConfigRepository.class);
+        when(index.traceConfigRepository.findNotEnded(any())).thenReturn(configs);
+        index.reload();
+
+        val rolesOfMember = new ArrayList<Role>();
+        for (int i = 0; i < memberRoles; i++)
+            rolesOfMember.add(roles.get(random.nextInt(GUILD_ROLES)));
+        member = mock(Member.class, withSettings().stubOnly());
+        when(member.getIdLong()).thenReturn(3_000_000L);
+        when(member.getRoles()).thenReturn(List.copyOf(rolesOfMember));
+    }
+
+    @Benchmark
+    public List<String> complete() {
+        return index.complete(GUILD_ID, member, query);
+    }
+}
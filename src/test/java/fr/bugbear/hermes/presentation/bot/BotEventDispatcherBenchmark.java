@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.presentation.bot;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.quarkus.arc.Arc;
+import lombok.val;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.events.Event;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event throughput of the dispatcher when every handler blocks on a REST call, stubbed by a sleep.
+ * <p>
+ * Each invocation dispatches {@value #EVENTS} events spread over {@value #CHANNELS} channels and waits for all of them
+ * to be handled, so the score is in events per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class BotEventDispatcherBenchmark {
+
+    private static final int EVENTS = 200;
+    private static final int CHANNELS = 50;
+
+    @Param({"inline", "virtual-threads"}) String mode;
+    @Param({"5", "20"}) int restLatencyMillis;
+    @Param({"64"}) int maxConcurrency;
+
+    private BotEventDispatcher dispatcher;
+    private Event event;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Arc.initialize();
+        val tracer = OpenTelemetry.noop().getTracer("benchmark");
+        dispatcher = mode.equals("inline")
+                     ? BotEventDispatcher.inline(tracer)
+                     : BotEventDispatcher.virtualThreads(maxConcurrency, tracer);
+        event = new Event(Mockito.mock(JDA.class)) {
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+        Arc.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void dispatchBlockingHandlers() throws InterruptedException {
+        val done = new CountDownLatch(EVENTS);
+        for (int i = 0; i < EVENTS; i++) {
+            dispatcher.dispatch(event, 1 + i % CHANNELS, () -> {
+                try {
+                    // a complete() call waiting for Discord
+                    Thread.sleep(restLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
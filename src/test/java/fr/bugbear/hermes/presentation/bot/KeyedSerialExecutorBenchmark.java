@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.presentation.bot;
+
+import lombok.val;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the mailboxes with CPU bound tasks, by number of worker threads and of keys.
+ * <p>
+ * With many keys the throughput should grow with the number of workers, with a single key it stays the one of a
+ * single worker since its tasks run one after the other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyedSerialExecutorBenchmark {
+
+    private static final int TASKS = 10_000;
+
+    @Param({"1", "2", "4", "8"}) int workers;
+    @Param({"1", "64", "10000"}) int keys;
+    @Param({"2000"}) int tokensPerTask;
+
+    private ForkJoinPool pool;
+    private KeyedSerialExecutor mailboxes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ForkJoinPool(workers);
+        mailboxes = new KeyedSerialExecutor(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void runTasks() throws InterruptedException {
+        val done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            mailboxes.execute(1 + i % keys, () -> {
+                Blackhole.consumeCPU(tokensPerTask);
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
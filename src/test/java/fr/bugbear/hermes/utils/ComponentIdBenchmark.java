@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static fr.bugbear.hermes.domain.entity.ButtonEventType.REOPEN_TICKET;
+import static fr.bugbear.hermes.domain.entity.ModalEventType.NEW_TRACE_TICKET;
+
+/**
+ * Decoding of button and modal IDs, {@link ComponentId} against the regular expressions compiled on every interaction
+ * it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComponentIdBenchmark {
+
+    // not final, so that the JIT doesn't fold the decoding
+    private String buttonId = ComponentId.encode(REOPEN_TICKET, 123_456L);
+    private String modalId = ComponentId.encode(NEW_TRACE_TICKET, UUID.fromString(
+            "3f2b8c1e-9a4d-4e6f-b1c2-7d8e9f0a1b2c"));
+
+    @Benchmark
+    public Optional<Long> componentIdLong() {
+        return ComponentId.type(buttonId).equals(REOPEN_TICKET)
+               ? ComponentId.decodeLong(REOPEN_TICKET, buttonId)
+               : Optional.empty();
+    }
+
+    /**
+     * The former {@code startsWith} routing and {@code DiscordUtils.extractID}
+     */
+    @Benchmark
+    public Optional<Long> regexLong() {
+        if (!buttonId.startsWith(REOPEN_TICKET))
+            return Optional.empty();
+        val pattern = Pattern.compile("%s-(.+)".formatted(REOPEN_TICKET));
+        val matcher = pattern.matcher(buttonId);
+        if (matcher.find())
+            return Optional.of(Long.parseLong(matcher.group(1)));
+        return Optional.empty();
+    }
+
+    @Benchmark
+    public Optional<UUID> componentIdUUID() {
+        return ComponentId.type(modalId).equals(NEW_TRACE_TICKET)
+               ? ComponentId.decodeUUID(NEW_TRACE_TICKET, modalId)
+               : Optional.empty();
+    }
+
+    /**
+     * The former {@code startsWith} routing and {@code DiscordUtils.extractUUID}
+     */
+    @Benchmark
+    public Optional<UUID> regexUUID() {
+        if (!modalId.startsWith(NEW_TRACE_TICKET))
+            return Optional.empty();
+        val pattern = Pattern.compile("%s-(.+)".formatted(NEW_TRACE_TICKET));
+        val matcher = pattern.matcher(modalId);
+        if (matcher.find())
+            return Optional.of(UUID.fromString(matcher.group(1)));
+        return Optional.empty();
+    }
+}
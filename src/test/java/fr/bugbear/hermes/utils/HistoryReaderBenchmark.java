@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static fr.bugbear.hermes.utils.HistoryReader.PAGE_SIZE;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Peak heap of the archiving of a large synthetic history, streamed by {@link HistoryReader} against the whole
+ * history held in a list, as the former {@code DiscordUtils.getAllMessages} did.
+ * <p>
+ * The stubbed channel builds each page of messages when it is requested, as they would be received from Discord, and
+ * every message is packed in a {@link TranscriptPacker} whose chunks are dropped. The heap is collected and sampled
+ * every {@value #SAMPLE_EVERY} messages: {@code peakLiveHeapMiB} is the largest heap still referenced while archiving,
+ * above the heap used before. The score includes these collections, only the counter is meaningful.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class HistoryReaderBenchmark {
+
+    private static final double MIB = 1024 * 1024;
+    private static final int SAMPLE_EVERY = 5_000;
+    private static final long SNOWFLAKE_BASE = 700_000_000_000_000_000L;
+    private static final OffsetDateTime START = OffsetDateTime.of(2024, 3, 1, 10, 0, 0, 0, ZoneOffset.UTC);
+    private static final String WORDS = "the test fails on the moulinette but works locally segfault malloc "
+                                        + "<@123456789012345678> valgrind makefile ";
+
+    @Param({"10000", "100000"}) int messages;
+
+    private MessageChannel channel;
+    private List<User> authors;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapCounters {
+        public double peakLiveHeapMiB;
+        private long heapBefore;
+        private int read;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            peakLiveHeapMiB = 0;
+            read = 0;
+            heapBefore = usedHeapAfterGc();
+        }
+
+        private void read() {
+            if (++read % SAMPLE_EVERY == 0)
+                sample();
+        }
+
+        private void sample() {
+            peakLiveHeapMiB = Math.max(peakLiveHeapMiB, (usedHeapAfterGc() - heapBefore) / MIB);
+        }
+    }
+
+    /**
+     * Message of the history, answering the getters used by the archiving
+     */
+    private record SyntheticMessage(long id, User author, String contentRaw) implements InvocationHandler {
+
+        @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            return switch (method.getName()) {
+                case "getIdLong" -> id;
+                case "getId" -> Long.toUnsignedString(id);
+                case "getAuthor" -> author;
+                case "getTimeCreated" -> START.plusSeconds(id - SNOWFLAKE_BASE);
+                case "getTimeEdited" -> null;
+                case "getContentRaw" -> contentRaw;
+                case "getAttachments" -> List.of();
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> "M:" + id;
+                default -> throw new UnsupportedOperationException(method.getName());
+            };
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        authors = new ArrayList<>();
+        for (val name : List.of("student-1", "student-2", "Assistant A", "Assistant B", "hermes")) {
+            val author = mock(User.class, withSettings().stubOnly());
+            when(author.getEffectiveName()).thenReturn(name);
+            authors.add(author);
+        }
+        channel = mock(MessageChannel.class, withSettings().stubOnly());
+        when(channel.getHistoryAfter(anyString(), anyInt()))
+                .thenAnswer(invocation -> retrieve(Long.parseUnsignedLong(invocation.getArgument(0))));
+    }
+
+    /**
+     * The page of messages after a message, newest first as returned by Discord
+     */
+    private MessageHistory.MessageRetrieveAction retrieve(long after) {
+        val first = after == 0 ? 1 : after - SNOWFLAKE_BASE + 1;
+        val last = Math.min(first + PAGE_SIZE - 1, messages);
+        val page = new ArrayList<Message>(PAGE_SIZE);
+        for (long index = last; index >= first; index--)
+            page.add(message(index));
+        val history = mock(MessageHistory.class, withSettings().stubOnly());
+        when(history.getRetrievedHistory()).thenReturn(page);
+        val action = mock(MessageHistory.MessageRetrieveAction.class, withSettings().stubOnly());
+        when(action.submit()).thenReturn(CompletableFuture.completedFuture(history));
+        return action;
+    }
+
+    private Message message(long index) {
+        // mostly short messages, a pasted log every hundred messages
+        val length = index % 100 == 0 ? 3_000 : 20 + (int) (index * 37 % 280);
+        val content = new StringBuilder(length);
+        while (content.length() < length)
+            content.append(WORDS);
+        val handler = new SyntheticMessage(SNOWFLAKE_BASE + index,
+                                           authors.get((int) (index % authors.size())),
+                                           content.substring(0, length));
+        return (Message) Proxy.newProxyInstance(Message.class.getClassLoader(),
+                                                new Class<?>[]{Message.class},
+                                                handler);
+    }
+
+    @Benchmark
+    public int streamed(HeapCounters counters) {
+        val packer = new TranscriptPacker(chunk -> {
+        });
+        HistoryReader.forEachMessage(channel, message -> {
+            packer.add(message);
+            counters.read();
+        });
+        packer.flush();
+        return packer.getChunks();
+    }
+
+    /**
+     * The whole history read in a list before being packed
+     */
+    @Benchmark
+    public int materialized(HeapCounters counters) {
+        val history = new ArrayList<Message>();
+        HistoryReader.forEachMessage(channel, message -> {
+            history.add(message);
+            counters.read();
+        });
+        val packer = new TranscriptPacker(chunk -> {
+        });
+        for (val message : history)
+            packer.add(message);
+        counters.sample();
+        packer.flush();
+        return packer.getChunks();
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongLongHashMapTest {
+
+    private static final int ONE_MILLION = 1_000_000;
+    private static final long MIB = 1024 * 1024;
+
+    /**
+     * First snowflake of 2024, the IDs of the threads are above it
+     */
+    private static final long SNOWFLAKE_BASE = 1_191_000_000_000_000_000L;
+
+    @Test
+    void putGetRemove() {
+        val map = new LongLongHashMap(4);
+        map.put(SNOWFLAKE_BASE, 1);
+        map.put(SNOWFLAKE_BASE + 1, 2);
+        map.put(SNOWFLAKE_BASE, 3);
+
+        assertEquals(2, map.size());
+        assertEquals(3, map.get(SNOWFLAKE_BASE, -1));
+        assertTrue(map.remove(SNOWFLAKE_BASE));
+        assertFalse(map.remove(SNOWFLAKE_BASE));
+        assertEquals(-1, map.get(SNOWFLAKE_BASE, -1));
+        assertEquals(2, map.get(SNOWFLAKE_BASE + 1, -1));
+        assertThrows(IllegalArgumentException.class, () -> map.put(0, 1));
+    }
+
+    @Test
+    void matchesHashMapUnderRandomOperations() {
+        val map = new LongLongHashMap(16);
+        val reference = new HashMap<Long, Long>();
+        val random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // few distinct keys, so that removals hit long probe chains
+            long key = SNOWFLAKE_BASE + random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key) != null, map.remove(key));
+            } else {
+                map.put(key, i);
+                reference.put(key, (long) i);
+            }
+        }
+        assertEquals(reference.size(), map.size());
+        reference.forEach((key, value) -> assertEquals(value.longValue(), map.get(key, -1)));
+    }
+
+    @Test
+    void memoryFootprintAtOneMillionEntries() {
+        val map = new LongLongHashMap(16);
+        for (int i = 0; i < ONE_MILLION; i++)
+            map.put(SNOWFLAKE_BASE + i * 4_194_304L, i);
+
+        assertEquals(ONE_MILLION, map.size());
+        for (int i = 0; i < ONE_MILLION; i += 997)
+            assertEquals(i, map.get(SNOWFLAKE_BASE + i * 4_194_304L, -1));
+        // 2^21 slots of two longs, where a HashMap<Long, Long> of the same entries retains about 80 MiB
+        assertEquals(32 * MIB, map.memoryFootprint());
+    }
+}
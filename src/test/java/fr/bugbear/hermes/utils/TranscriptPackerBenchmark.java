@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import net.dv8tion.jda.api.utils.TimeFormat;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Archiving of a synthetic history of {@value #MESSAGES} messages, packed transcript against the one message per
+ * original message it replaced.
+ * <p>
+ * Each REST call is stubbed by a pause of {@code restLatencyMicros}, the score is the wall time of an archive and the
+ * {@code restCalls} counter the number of messages sent. The rate limit of the log channel (5 messages every 5
+ * seconds) is not modelled: the real wall time is roughly one second per REST call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TranscriptPackerBenchmark {
+
+    private static final int MESSAGES = 5_000;
+    private static final int LEGACY_SLICE = 1900;
+
+    @Param({"0", "200"}) int restLatencyMicros;
+
+    private List<SyntheticMessage> history;
+
+    /**
+     * A message of the history, as read from Discord
+     */
+    private record SyntheticMessage(String author, OffsetDateTime timeCreated, String contentRaw) {
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RestCalls {
+        public long restCalls;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            restCalls = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        val random = new Random(42);
+        val authors = List.of("student-1", "student-2", "Assistant A", "Assistant B", "hermes");
+        val words = "the test fails on the moulinette but works locally segfault malloc <@123456789012345678> "
+                    + "<@&234567890123456789> valgrind makefile";
+        val start = OffsetDateTime.of(2024, 3, 1, 10, 0, 0, 0, ZoneOffset.UTC);
+        history = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            // mostly short messages, some pasted logs longer than a Discord message
+            val length = random.nextInt(100) < 2 ? 2_000 + random.nextInt(3_000) : 10 + random.nextInt(300);
+            val text = new StringBuilder(length);
+            while (text.length() < length) {
+                val from = random.nextInt(words.length() - 20);
+                text.append(words, from, from + 20);
+            }
+            history.add(new SyntheticMessage(authors.get(random.nextInt(authors.size())),
+                                             start.plusSeconds(i * 30L),
+                                             text.substring(0, length)));
+        }
+    }
+
+    @Benchmark
+    public int packed(RestCalls counters) {
+        val packer = new TranscriptPacker(chunk -> send(chunk, counters));
+        for (val message : history)
+            packer.addLine(message.author() + " (" + TimeFormat.TIME_LONG.format(message.timeCreated()) + "): "
+                           + TranscriptPacker.escapeMentions(message.contentRaw()));
+        packer.flush();
+        return packer.getChunks();
+    }
+
+    /**
+     * The former {@code DiscordUtils.copyMessagesToLogChannelThenDelete}
+     */
+    @Benchmark
+    public long oneMessagePerMessage(RestCalls counters) {
+        for (val message : history) {
+            val messageText = message.contentRaw()
+                                     .replaceAll("<@&([0-9]+)>", "`<@&$1>`")
+                                     .replaceAll("<@([0-9]+)>", "`<@$1>`");
+            val timestamp = TimeFormat.TIME_LONG.format(message.timeCreated());
+            val sizeMessage = messageText.length();
+            send("%s (%s): %s".formatted(message.author(),
+                                         timestamp,
+                                         messageText.substring(0, Math.min(sizeMessage, LEGACY_SLICE))),
+                 counters);
+            for (int i = LEGACY_SLICE; i < sizeMessage; i += LEGACY_SLICE)
+                send(messageText.substring(i, Math.min(i + LEGACY_SLICE, sizeMessage)), counters);
+        }
+        return counters.restCalls;
+    }
+
+    private void send(String content, RestCalls counters) {
+        counters.restCalls++;
+        if (restLatencyMicros > 0)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(restLatencyMicros));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2024.  Dov Devers <renaud-dov.devers@epita.fr>
+ * All right reserved.
+ */
+
+package fr.bugbear.hermes.utils;
+
+import lombok.val;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Throughput of the gzip JSON lines transcript export, in messages per second.
+ * <p>
+ * Each invocation renders a synthetic history of {@value #MESSAGES} messages to a gzip stream discarding its output,
+ * as {@code TranscriptService} does with the temporary file. The {@code outputBytes} counter reports the size of
+ * the attachment that would be uploaded, or of the plain JSON lines without gzip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranscriptWriterBenchmark {
+
+    private static final int MESSAGES = 5_000;
+
+    @Param({"false", "true"}) boolean gzip;
+
+    private List<SyntheticMessage> history;
+
+    /**
+     * A message of the history, as read from Discord
+     */
+    private record SyntheticMessage(String id,
+                                    String authorId,
+                                    String author,
+                                    OffsetDateTime timeCreated,
+                                    OffsetDateTime timeEdited,
+                                    String contentRaw,
+                                    List<String> attachmentUrls) {
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Output {
+        public long outputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            outputBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        val random = new Random(42);
+        val authors = List.of("student-1", "student-2", "Assistant A", "Assistant B", "hermes");
+        val words = "the test fails on the moulinette but works locally segfault malloc <@123456789012345678> "
+                    + "valgrind makefile \"quoted\" \\n";
+        val start = OffsetDateTime.of(2024, 3, 1, 10, 0, 0, 0, ZoneOffset.UTC);
+        history = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            val length = random.nextInt(100) < 2 ? 2_000 + random.nextInt(2_000) : 10 + random.nextInt(300);
+            val text = new StringBuilder(length);
+            while (text.length() < length) {
+                val from = random.nextInt(words.length() - 20);
+                text.append(words, from, from + 20);
+            }
+            val authorIndex = random.nextInt(authors.size());
+            val timeCreated = start.plusSeconds(i * 30L);
+            history.add(new SyntheticMessage(Long.toString(1_200_000_000_000_000_000L + i * 4_194_304L),
+                                             Long.toString(300_000_000_000_000_000L + authorIndex),
+                                             authors.get(authorIndex),
+                                             timeCreated,
+                                             random.nextInt(10) == 0 ? timeCreated.plusMinutes(1) : null,
+                                             text.substring(0, length),
+                                             random.nextInt(20) == 0
+                                             ? List.of("https://cdn.discordapp.com/attachments/1/2/trace.log")
+                                             : List.of()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int render(Output counters) throws IOException {
+        val sink = new CountingOutputStream();
+        val stream = gzip ? new GZIPOutputStream(new BufferedOutputStream(sink)) : new BufferedOutputStream(sink);
+        try (stream) {
+            val writer = new TranscriptWriter(stream);
+            for (val message : history)
+                writer.addLine(message.id(),
+                               message.authorId(),
+                               message.author(),
+                               message.timeCreated(),
+                               message.timeEdited(),
+                               message.contentRaw(),
+                               message.attachmentUrls());
+        }
+        counters.outputBytes = sink.count;
+        return (int) sink.count;
+    }
+
+    /**
+     * Discards what is written, only counting the bytes
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}